@@ -0,0 +1,114 @@
+package com.gearwheel.externalsort;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+/**
+ * Time to merge 1M rows cut into k sorted runs in memory, by the loser tree against the PriorityQueue merge it replaced.
+ * in the package of the sorter, the loser tree and the segment reader are package private
+ *
+ * @author gear-wheel
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class LoserTreeBenchmark {
+
+    private static final int ROWS = 1 << 20;
+    private static final Comparator<long[]> COMPARATOR = Comparator.comparingLong(c -> c[0]);
+
+    @Param({"16", "256", "4096"})
+    public int k;
+
+    private ByteBuffer[] runs;
+
+    @Setup(Level.Trial)
+    public void createRuns() {
+        final Random random = new Random(k);
+        runs = new ByteBuffer[k];
+        for (int i = 0; i < k; i++) {
+            long[] values = random.longs(ROWS / k).sorted().toArray();
+            ByteBuffer run = ByteBuffer.allocate(values.length * Long.BYTES);
+            for (long value : values) {
+                run.putLong(value);
+            }
+            run.flip();
+            runs[i] = run;
+        }
+    }
+
+    @Benchmark
+    public long loserTree() {
+        LoserTree<long[]> tree = new LoserTree<>(readers(), COMPARATOR);
+        long sum = 0;
+        long index = 0;
+        while (!tree.isEmpty()) {
+            sum += tree.peek()[0] * index++;
+            tree.next();
+        }
+        return sum;
+    }
+
+    @Benchmark
+    public long priorityQueue() {
+        List<Segment.BufferedSegmentReader<long[]>> readers = readers();
+        PriorityQueue<Segment.BufferedSegmentReader<long[]>> queue = new PriorityQueue<>(readers.size(),
+                (o1, o2) -> COMPARATOR.compare(o1.read(), o2.read()));
+        for (Segment.BufferedSegmentReader<long[]> reader : readers) {
+            if (reader.read() != null) {
+                queue.add(reader);
+            }
+        }
+        long sum = 0;
+        long index = 0;
+        while (!queue.isEmpty()) {
+            Segment.BufferedSegmentReader<long[]> poll = queue.poll();
+            sum += poll.read()[0] * index++;
+            poll.loadNewElement();
+            if (poll.read() != null) {
+                queue.add(poll);
+            }
+        }
+        return sum;
+    }
+
+    private List<Segment.BufferedSegmentReader<long[]>> readers() {
+        List<Segment.BufferedSegmentReader<long[]>> readers = new ArrayList<>(runs.length);
+        for (ByteBuffer run : runs) {
+            Segment.BufferedSegmentReader<long[]> reader = new Segment.BufferedSegmentReader<>(run.duplicate(), rowReader());
+            reader.loadNewElement();
+            readers.add(reader);
+        }
+        return readers;
+    }
+
+    private static Function<ByteBuffer, long[]> rowReader() {
+        long[] row = new long[1];
+        return bb -> {
+            row[0] = bb.getLong();
+            return row;
+        };
+    }
+}
@@ -0,0 +1,34 @@
+package com.gearwheel.externalsort.benchmarks;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * JMH main writing json results by default
+ * <pre>{@code
+ * java -jar benchmarks/target/benchmarks.jar                       # all, into jmh-result.json
+ * java -jar benchmarks/target/benchmarks.jar ReadBack -rff read.json
+ * }</pre>
+ * every JMH option is accepted, {@code -rf} overrides the json format
+ *
+ * @author gear-wheel
+ */
+public final class BenchmarkMain {
+
+    private BenchmarkMain() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        List<String> options = new ArrayList<>(Arrays.asList(args));
+        if (!options.contains("-rf")) {
+            options.add("-rf");
+            options.add("json");
+        }
+        if (!options.contains("-rff")) {
+            options.add("-rff");
+            options.add("jmh-result.json");
+        }
+        org.openjdk.jmh.Main.main(options.toArray(new String[0]));
+    }
+}
@@ -0,0 +1,95 @@
+package com.gearwheel.externalsort.benchmarks;
+
+import com.gearwheel.externalsort.FastLongBaseExternalSort;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.nio.LongBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time to append 4M rows from several producer threads, one writer each, every full buffer sorted and written as a run.
+ * the merge is not included
+ *
+ * @author gear-wheel
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ConcurrentIngestBenchmark {
+
+    private static final int ROWS = 1 << 22;
+    private static final int COLUMNS = 2;
+
+    @Param({"1", "2", "4"})
+    public int producers;
+
+    private long[] data;
+    private ExecutorService executor;
+    private File workdir;
+    private FastLongBaseExternalSort<String> sorter;
+
+    @Setup(Level.Trial)
+    public void generate() {
+        data = Rows.generate(ROWS, COLUMNS, Rows.Distribution.RANDOM);
+        executor = Executors.newFixedThreadPool(producers);
+    }
+
+    @TearDown(Level.Trial)
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    @Setup(Level.Invocation)
+    public void open() {
+        workdir = Rows.createWorkdir();
+        sorter = Rows.builder(workdir, COLUMNS, Rows.SortBy.KEY_COLUMNS)
+                .segmentSizeBytes(4 * 1024 * 1024)
+                .build();
+    }
+
+    @TearDown(Level.Invocation)
+    public void close() throws Exception {
+        sorter.close();
+        Rows.delete(workdir);
+    }
+
+    @Benchmark
+    public FastLongBaseExternalSort<String> writers() throws Exception {
+        final int rowsPerProducer = ROWS / producers;
+        List<Future<?>> futures = new ArrayList<>(producers);
+        for (int p = 0; p < producers; p++) {
+            final LongBuffer slice = LongBuffer.wrap(data, p * rowsPerProducer * COLUMNS, rowsPerProducer * COLUMNS);
+            futures.add(executor.submit(() -> {
+                try (FastLongBaseExternalSort<String>.Writer writer = sorter.newWriter()) {
+                    writer.appendRows(slice);
+                }
+                return null;
+            }));
+        }
+        for (Future<?> future : futures) {
+            future.get();
+        }
+        return sorter;
+    }
+}
@@ -0,0 +1,120 @@
+package com.gearwheel.externalsort.benchmarks;
+
+import com.gearwheel.externalsort.FastLongBaseExternalSort;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.nio.LongBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Rows per second appended into a buffer large enough to never spill, by every append method
+ *
+ * @author gear-wheel
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Thread)
+public class IngestBenchmark {
+
+    private static final int ROWS = 1 << 20;
+
+    @Param({"2", "8"})
+    public int columns;
+
+    private long[] data;
+    private List<String> heads;
+    private File workdir;
+    private FastLongBaseExternalSort<String> sorter;
+
+    @Setup(Level.Trial)
+    public void generate() {
+        data = Rows.generate(ROWS, columns, Rows.Distribution.RANDOM);
+        heads = Rows.heads(columns);
+    }
+
+    @Setup(Level.Invocation)
+    public void open() {
+        workdir = Rows.createWorkdir();
+        sorter = Rows.builder(workdir, columns, Rows.SortBy.KEY_COLUMNS)
+                .segmentSizeBytes(2 * ROWS * columns * Long.BYTES)
+                .build();
+    }
+
+    @TearDown(Level.Invocation)
+    public void close() throws Exception {
+        sorter.close();
+        Rows.delete(workdir);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(ROWS)
+    public void appendLine() {
+        Map<String, Long> line = new HashMap<>(columns * 2);
+        for (int r = 0; r < ROWS; r++) {
+            for (int c = 0; c < columns; c++) {
+                line.put(heads.get(c), data[r * columns + c]);
+            }
+            sorter.appendLine(line);
+        }
+    }
+
+    /**
+     * batches of 1024 boxed rows
+     */
+    @Benchmark
+    @OperationsPerInvocation(ROWS)
+    public void append() {
+        final int batch = 1024;
+        Map<String, List<Long>> lines = new HashMap<>(columns * 2);
+        for (String head : heads) {
+            lines.put(head, new ArrayList<>(batch));
+        }
+        for (int from = 0; from < ROWS; from += batch) {
+            for (int c = 0; c < columns; c++) {
+                List<Long> column = lines.get(heads.get(c));
+                column.clear();
+                for (int r = from; r < from + batch; r++) {
+                    column.add(data[r * columns + c]);
+                }
+            }
+            sorter.append(lines);
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(ROWS)
+    public void appendRow() {
+        long[] row = new long[columns];
+        for (int r = 0; r < ROWS; r++) {
+            System.arraycopy(data, r * columns, row, 0, columns);
+            sorter.appendRow(row);
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(ROWS)
+    public void appendRows() {
+        sorter.appendRows(LongBuffer.wrap(data));
+    }
+}
@@ -0,0 +1,85 @@
+package com.gearwheel.externalsort.benchmarks;
+
+import com.gearwheel.externalsort.Durability;
+import com.gearwheel.externalsort.FastLongBaseExternalSort;
+import com.gearwheel.externalsort.IoBackend;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.nio.LongBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time of {@code sortAll} over 8M spilled rows of two columns, cut into a varying number of runs, per io backend
+ *
+ * @author gear-wheel
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Thread)
+public class MergeBenchmark {
+
+    private static final int ROWS = 1 << 23;
+    private static final int COLUMNS = 2;
+
+    @Param({"8", "64", "512"})
+    public int runs;
+
+    @Param({"512", "16"})
+    public int maxMergeFanIn;
+
+    @Param({"1", "4"})
+    public int mergeThreads;
+
+    @Param({"MMAP", "CHANNEL"})
+    public IoBackend ioBackend;
+
+    private long[] data;
+    private File workdir;
+    private FastLongBaseExternalSort<String> sorter;
+
+    @Setup(Level.Trial)
+    public void generate() {
+        data = Rows.generate(ROWS, COLUMNS, Rows.Distribution.RANDOM);
+    }
+
+    @Setup(Level.Invocation)
+    public void spill() {
+        workdir = Rows.createWorkdir();
+        sorter = Rows.builder(workdir, COLUMNS, Rows.SortBy.KEY_COLUMNS)
+                .segmentSizeBytes(ROWS / runs * COLUMNS * Long.BYTES)
+                .maxMergeFanIn(maxMergeFanIn)
+                .mergeThreads(mergeThreads)
+                .ioBackend(ioBackend)
+                .durability(Durability.NONE)
+                .build();
+        sorter.appendRows(LongBuffer.wrap(data));
+    }
+
+    @TearDown(Level.Invocation)
+    public void close() throws Exception {
+        sorter.close();
+        Rows.delete(workdir);
+    }
+
+    @Benchmark
+    public FastLongBaseExternalSort<String> sortAll() {
+        sorter.sortAll();
+        return sorter;
+    }
+}
@@ -0,0 +1,101 @@
+package com.gearwheel.externalsort.benchmarks;
+
+import com.gearwheel.externalsort.FastLongBaseExternalSort;
+import com.gearwheel.externalsort.SortSpec;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.nio.LongBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Time to combine the sorted files of several sorters holding 4M rows of two columns:
+ * a k-way merge of the files against appending their rows to a new sorter and sorting again
+ *
+ * @author gear-wheel
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class MergeSortedFilesBenchmark {
+
+    private static final int ROWS = 1 << 22;
+    private static final int COLUMNS = 2;
+    private static final SortSpec SPEC = SortSpec.builder().ascending(0).build();
+
+    @Param({"2", "8"})
+    public int shards;
+
+    private File workdir;
+    private List<File> directories;
+    private File target;
+
+    @Setup(Level.Trial)
+    public void sortShards() throws Exception {
+        workdir = Rows.createWorkdir();
+        directories = new ArrayList<>(shards);
+        final long[] data = Rows.generate(ROWS, COLUMNS, Rows.Distribution.RANDOM);
+        final int rowsPerShard = ROWS / shards;
+        for (int shard = 0; shard < shards; shard++) {
+            File directory = new File(workdir, "shard" + shard);
+            directory.mkdirs();
+            try (FastLongBaseExternalSort<String> sorter = Rows.builder(directory, COLUMNS, Rows.SortBy.KEY_COLUMNS).build()) {
+                sorter.appendRows(LongBuffer.wrap(data, shard * rowsPerShard * COLUMNS, rowsPerShard * COLUMNS));
+                sorter.sortAll();
+            }
+            directories.add(directory);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void delete() {
+        Rows.delete(workdir);
+    }
+
+    @Setup(Level.Invocation)
+    public void createTarget() {
+        target = new File(workdir, "target");
+        target.mkdirs();
+    }
+
+    @TearDown(Level.Invocation)
+    public void deleteTarget() {
+        Rows.delete(target);
+    }
+
+    @Benchmark
+    public long mergeSorted() {
+        return FastLongBaseExternalSort.mergeSorted(directories, COLUMNS, SPEC, target);
+    }
+
+    @Benchmark
+    public long resort() throws Exception {
+        try (FastLongBaseExternalSort<String> sorter = Rows.builder(target, COLUMNS, Rows.SortBy.KEY_COLUMNS).build()) {
+            for (File directory : directories) {
+                try (Stream<long[]> rows = FastLongBaseExternalSort.stream(directory, COLUMNS)) {
+                    rows.forEach(sorter::appendRow);
+                }
+            }
+            sorter.sortAll();
+            return sorter.metrics().getRowsAppended();
+        }
+    }
+}
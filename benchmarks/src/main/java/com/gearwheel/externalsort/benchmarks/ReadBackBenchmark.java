@@ -0,0 +1,124 @@
+package com.gearwheel.externalsort.benchmarks;
+
+import com.gearwheel.externalsort.FastLongBaseExternalSort;
+import com.gearwheel.externalsort.IoBackend;
+import com.gearwheel.externalsort.SegmentFormat;
+import com.gearwheel.externalsort.SortedRowCursor;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.nio.LongBuffer;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Rows per second read back from the out files of one sort
+ *
+ * @author gear-wheel
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ReadBackBenchmark {
+
+    private static final int ROWS = 1 << 22;
+
+    @Param({"2", "8"})
+    public int columns;
+
+    @Param({"RAW", "DELTA_VARINT"})
+    public SegmentFormat segmentFormat;
+
+    @Param({"MMAP", "CHANNEL"})
+    public IoBackend ioBackend;
+
+    private File workdir;
+    private FastLongBaseExternalSort<String> sorter;
+    private long[] batch;
+
+    @Setup(Level.Trial)
+    public void sort() {
+        workdir = Rows.createWorkdir();
+        sorter = Rows.builder(workdir, columns, Rows.SortBy.KEY_COLUMNS)
+                .segmentSizeBytes(16 * 1024 * 1024)
+                .segmentFormat(segmentFormat)
+                .ioBackend(ioBackend)
+                .build();
+        sorter.appendRows(LongBuffer.wrap(Rows.generate(ROWS, columns, Rows.Distribution.RANDOM)));
+        sorter.sortAll();
+        batch = new long[1024 * columns];
+    }
+
+    @TearDown(Level.Trial)
+    public void close() throws Exception {
+        sorter.close();
+        Rows.delete(workdir);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(ROWS)
+    public long forEachSorted() {
+        long[] sum = new long[1];
+        sorter.forEachSorted(line -> sum[0] += line.get(0));
+        return sum[0];
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(ROWS)
+    public long cursorNext() throws Exception {
+        long sum = 0L;
+        try (SortedRowCursor cursor = sorter.cursor()) {
+            while (cursor.next()) {
+                sum += cursor.getLong(0);
+            }
+        }
+        return sum;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(ROWS)
+    public long cursorRead() throws Exception {
+        long sum = 0L;
+        try (SortedRowCursor cursor = sorter.cursor()) {
+            int rows;
+            while ((rows = cursor.read(batch, 0, 1024)) > 0) {
+                for (int r = 0; r < rows; r++) {
+                    sum += batch[r * columns];
+                }
+            }
+        }
+        return sum;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(ROWS)
+    public long stream() {
+        try (Stream<long[]> rows = sorter.stream()) {
+            return rows.mapToLong(row -> row[0]).sum();
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(ROWS)
+    public long parallelStream() {
+        try (Stream<long[]> rows = sorter.stream()) {
+            return rows.parallel().mapToLong(row -> row[0]).sum();
+        }
+    }
+}
@@ -0,0 +1,122 @@
+package com.gearwheel.externalsort.benchmarks;
+
+import com.gearwheel.externalsort.FastLongBaseExternalSort;
+import com.gearwheel.externalsort.SortSpec;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Input rows and work directories shared by the benchmarks
+ *
+ * @author gear-wheel
+ */
+public final class Rows {
+
+    /**
+     * order of the key column, the other columns are random
+     */
+    public enum Distribution {
+        RANDOM,
+        PRESORTED,
+        REVERSE,
+        /** 16 distinct keys */
+        FEW_UNIQUE
+    }
+
+    /**
+     * how a sorter orders the rows
+     */
+    public enum SortBy {
+        /** radix sort of column 0 */
+        KEY_COLUMNS,
+        /** comparator of column 0 */
+        COMPARATOR,
+        /** sort spec of column 0 descending, then column 1 unsigned */
+        SORT_SPEC,
+        /** comparator chain of the same order as {@link #SORT_SPEC} */
+        COMPARATOR_CHAIN
+    }
+
+    private Rows() {
+    }
+
+    /**
+     * @param rows rows
+     * @param columns columns per row, the key is column 0
+     * @param distribution order of the keys
+     * @return rows back to back
+     */
+    static long[] generate(int rows, int columns, Distribution distribution) {
+        Random random = new Random(42);
+        long[] data = new long[rows * columns];
+        for (int r = 0; r < rows; r++) {
+            int offset = r * columns;
+            switch (distribution) {
+                case PRESORTED:
+                    data[offset] = r;
+                    break;
+                case REVERSE:
+                    data[offset] = rows - r;
+                    break;
+                case FEW_UNIQUE:
+                    data[offset] = random.nextInt(16);
+                    break;
+                default:
+                    data[offset] = random.nextLong();
+            }
+            for (int c = 1; c < columns; c++) {
+                data[offset + c] = random.nextLong();
+            }
+        }
+        return data;
+    }
+
+    static List<String> heads(int columns) {
+        List<String> heads = new ArrayList<>(columns);
+        for (int c = 0; c < columns; c++) {
+            heads.add("c" + c);
+        }
+        return heads;
+    }
+
+    static FastLongBaseExternalSort.Builder<String> builder(File workdir, int columns, SortBy sortBy) {
+        FastLongBaseExternalSort.Builder<String> builder = FastLongBaseExternalSort.builder(workdir, heads(columns));
+        switch (sortBy) {
+            case KEY_COLUMNS:
+                return builder.keyColumns(0);
+            case SORT_SPEC:
+                return builder.sortSpec(SortSpec.builder().descending(0).unsignedAscending(1).build());
+            case COMPARATOR_CHAIN:
+                return builder.comparator(Comparator.<long[]>comparingLong(x -> x[0]).reversed()
+                        .thenComparing((x, y) -> Long.compareUnsigned(x[1], y[1])));
+            default:
+                return builder.comparator((x, y) -> Long.compare(x[0], y[0]));
+        }
+    }
+
+    static File createWorkdir() {
+        try {
+            return Files.createTempDirectory("external-sort-bench").toFile();
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    static void delete(File file) {
+        File[] files = file.listFiles();
+        if (files != null) {
+            for (File child : files) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+}
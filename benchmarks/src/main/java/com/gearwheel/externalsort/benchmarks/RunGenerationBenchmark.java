@@ -0,0 +1,83 @@
+package com.gearwheel.externalsort.benchmarks;
+
+import com.gearwheel.externalsort.FastLongBaseExternalSort;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.nio.LongBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time to append 4M rows with every full buffer sorted and written as a run, the merge is not included
+ *
+ * @author gear-wheel
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Thread)
+public class RunGenerationBenchmark {
+
+    private static final int ROWS = 1 << 22;
+
+    @Param({"2", "4", "8"})
+    public int columns;
+
+    @Param({"RANDOM", "PRESORTED", "REVERSE", "FEW_UNIQUE"})
+    public Rows.Distribution distribution;
+
+    @Param({"1048576", "16777216"})
+    public int segmentSizeBytes;
+
+    @Param({"KEY_COLUMNS", "COMPARATOR", "SORT_SPEC", "COMPARATOR_CHAIN"})
+    public Rows.SortBy sortBy;
+
+    @Param({"false", "true"})
+    public boolean offHeap;
+
+    private long[] data;
+    private File workdir;
+    private FastLongBaseExternalSort<String> sorter;
+
+    @Setup(Level.Trial)
+    public void generate() {
+        data = Rows.generate(ROWS, columns, distribution);
+    }
+
+    @Setup(Level.Invocation)
+    public void open() {
+        workdir = Rows.createWorkdir();
+        FastLongBaseExternalSort.Builder<String> builder = Rows.builder(workdir, columns, sortBy)
+                .segmentSizeBytes(segmentSizeBytes);
+        if (offHeap) {
+            builder.offHeapRunBuffers();
+        }
+        sorter = builder.build();
+    }
+
+    @TearDown(Level.Invocation)
+    public void close() throws Exception {
+        sorter.close();
+        Rows.delete(workdir);
+    }
+
+    @Benchmark
+    public FastLongBaseExternalSort<String> spillRuns() {
+        sorter.appendRows(LongBuffer.wrap(data));
+        return sorter;
+    }
+}
@@ -0,0 +1,135 @@
+package com.gearwheel.externalsort;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+/**
+ * Sorts and writes full run buffers on worker threads while the producer fills another buffer
+ * <p>
+ *     at most {@code maxPendingRuns} full buffers are sorted or waiting, the producer blocks on the next full buffer after that.
+ *     the first failure is rethrown on the next {@link #spill(RowBuffer)} or {@link #await()}
+ * </p>
+ *
+ * @author gear-wheel
+ */
+final class AsyncSpiller implements AutoCloseable {
+
+    private static final AtomicInteger POOL_NUM = new AtomicInteger();
+
+    private final ExecutorService executor;
+    private final BlockingQueue<RowBuffer> freeBuffers;
+    private final Deque<Future<?>> pendingSpills = new ArrayDeque<>();
+    private final Consumer<RowBuffer> spillAction;
+    private final AtomicReference<Throwable> error = new AtomicReference<>();
+
+    /**
+     * @param threads worker threads
+     * @param maxPendingRuns full buffers in flight before the producer blocks
+     * @param bufferFactory creates the extra buffers
+     * @param spillAction sorts and writes a buffer, called on a worker thread
+     */
+    AsyncSpiller(int threads, int maxPendingRuns, Supplier<RowBuffer> bufferFactory, Consumer<RowBuffer> spillAction) {
+        if (threads <= 0 || maxPendingRuns <= 0) {
+            throw new IllegalArgumentException("threads and max pending runs should be positive");
+        }
+        this.spillAction = spillAction;
+        this.freeBuffers = new ArrayBlockingQueue<>(maxPendingRuns);
+        for (int i = 0; i < maxPendingRuns; i++) {
+            freeBuffers.add(bufferFactory.get());
+        }
+
+        final int poolNum = POOL_NUM.incrementAndGet();
+        final AtomicInteger threadNum = new AtomicInteger();
+        this.executor = Executors.newFixedThreadPool(threads, r -> {
+            Thread thread = new Thread(r, "external-sort-spill-" + poolNum + "-" + threadNum.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * hand over a full buffer
+     * @param full full buffer, owned by the spiller from now on
+     * @return an empty buffer
+     */
+    RowBuffer spill(RowBuffer full) {
+        checkError();
+
+        pendingSpills.add(executor.submit(() -> {
+            try {
+                spillAction.accept(full);
+            }
+            catch (Throwable t) {
+                error.compareAndSet(null, t);
+                throw t;
+            }
+            finally {
+                full.clear();
+                freeBuffers.add(full);
+            }
+            return null;
+        }));
+        while (!pendingSpills.isEmpty() && pendingSpills.peek().isDone()) {
+            pendingSpills.poll();
+        }
+
+        try {
+            return freeBuffers.take();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("interrupted while waiting for a free run buffer", e);
+        }
+    }
+
+    /**
+     * fail fast if a spill has failed
+     */
+    void checkError() {
+        Throwable t = error.get();
+        if (t != null) {
+            throw new IllegalStateException("spill run failed", t);
+        }
+    }
+
+    /**
+     * wait for all pending spills
+     */
+    void await() {
+        Future<?> future;
+        while ((future = pendingSpills.poll()) != null) {
+            try {
+                future.get();
+            }
+            catch (ExecutionException ignore) {
+                // reported below
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("interrupted while waiting for spills", e);
+            }
+        }
+        checkError();
+    }
+
+    @Override
+    public void close() throws InterruptedException {
+        executor.shutdown();
+        executor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        RowBuffer buffer;
+        while ((buffer = freeBuffers.poll()) != null) {
+            buffer.free();
+        }
+    }
+}
@@ -0,0 +1,311 @@
+package com.gearwheel.externalsort;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A segment of {@link IoBackend#CHANNEL}, written through a direct buffer and read back by positional reads
+ * <p>
+ *     the file grows as the buffer is flushed, the segment size only bounds it.
+ *     every input reads through its own channel and buffer, so inputs of one segment can be used by different threads.
+ *     buffers are pooled and reused, a buffer the pool has no room for is left to the garbage collector, nothing is unmapped or cleaned
+ * </p>
+ *
+ * @author gear-wheel
+ */
+final class ChannelSegment extends Segment {
+
+    private static final int MAX_POOLED = 64;
+    private static final Queue<ByteBuffer> POOL = new ConcurrentLinkedQueue<>();
+    private static final AtomicInteger POOLED = new AtomicInteger();
+
+    private final int capacity;
+    /** size of a row if raw, 0 if blocks */
+    private final int recordBytes;
+    /** size of the buffers, at least the largest row or block */
+    private final int bufferBytes;
+    private FileChannel channel;
+    /** staged bytes between 0 and position, null if released */
+    private ByteBuffer staged;
+    /** bytes written to the file */
+    private int written;
+
+
+    private ChannelSegment(File file, int capacity, int recordBytes, int bufferBytes) {
+        super(file);
+        this.capacity = capacity;
+        this.recordBytes = recordBytes;
+        this.bufferBytes = bufferBytes;
+    }
+
+    /**
+     * @param file segment file, created if missing
+     * @param pos fill position, bytes after it are overwritten
+     * @param capacity max size of the file
+     * @param recordBytes size of a row if raw, 0 if blocks
+     * @param bufferBytes size of the buffers, at least the largest row or block
+     * @return segment, released
+     */
+    static ChannelSegment open(File file, int pos, int capacity, int recordBytes, int bufferBytes) {
+        if (!file.exists()) {
+            try {
+                FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE).close();
+            }
+            catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+        ChannelSegment segment = new ChannelSegment(file, capacity, recordBytes, bufferBytes);
+        segment.written = pos;
+        segment.forced(pos);
+        return segment;
+    }
+
+    /**
+     * splits of a parallel stream read block headers at once
+     */
+    private synchronized FileChannel channel() throws IOException {
+        if (channel == null) {
+            channel = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+        }
+        return channel;
+    }
+
+    @Override
+    ByteBuffer writable(int bytes) {
+        if (position() + (long) bytes > capacity) {
+            return null;
+        }
+        if (staged == null) {
+            staged = take(Math.max(bufferBytes, bytes));
+        }
+        else if (staged.remaining() < bytes) {
+            flush();
+            if (staged.capacity() < bytes) {
+                give(staged);
+                staged = take(bytes);
+            }
+        }
+        return staged;
+    }
+
+    @Override
+    int position() {
+        return staged == null ? written : written + staged.position();
+    }
+
+    @Override
+    int room() {
+        return capacity - position();
+    }
+
+    @Override
+    boolean isOpen() {
+        return staged != null || channel != null;
+    }
+
+    @Override
+    void flush() {
+        if (staged == null || staged.position() == 0) {
+            return;
+        }
+        staged.flip();
+        try {
+            FileChannel fileChannel = channel();
+            while (staged.hasRemaining()) {
+                written += fileChannel.write(staged, written);
+            }
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        staged.clear();
+    }
+
+    @Override
+    Input input(int from, int to) {
+        flush();
+        return new ChannelInput(from, to);
+    }
+
+    @Override
+    void readAt(int offset, ByteBuffer dst) {
+        flush();
+        final int limit = dst.limit();
+        dst.limit(dst.position() + Math.min(dst.remaining(), written - offset));
+        try {
+            FileChannel fileChannel = channel();
+            long pos = offset;
+            while (dst.hasRemaining()) {
+                int n = fileChannel.read(dst, pos);
+                if (n < 0) {
+                    throw new IllegalStateException("segment " + file + " ends before " + written);
+                }
+                pos += n;
+            }
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        finally {
+            dst.limit(limit);
+        }
+    }
+
+    @Override
+    void forceContent() {
+        flush();
+        if (channel == null) {
+            forceFile(file);
+            return;
+        }
+        try {
+            channel.force(false);
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override
+    void doRelease() {
+        flush();
+        if (staged != null) {
+            give(staged);
+            staged = null;
+        }
+        if (channel != null) {
+            try {
+                channel.close();
+            }
+            catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            channel = null;
+        }
+    }
+
+    @Override
+    Segment renamed(File target) {
+        ChannelSegment segment = new ChannelSegment(target, capacity, recordBytes, bufferBytes);
+        segment.written = written;
+        return segment;
+    }
+
+    /**
+     * @return bytes of the whole rows or blocks at the start of bb
+     */
+    private int wholeRecords(ByteBuffer bb) {
+        if (recordBytes > 0) {
+            return bb.limit() - bb.limit() % recordBytes;
+        }
+        int offset = 0;
+        while (offset + RowBlockCodec.HEADER_BYTES <= bb.limit()) {
+            int end = offset + RowBlockCodec.HEADER_BYTES + bb.getInt(offset + Integer.BYTES);
+            if (end > bb.limit()) {
+                break;
+            }
+            offset = end;
+        }
+        return offset;
+    }
+
+    static ByteBuffer take(int bytes) {
+        ByteBuffer bb = POOL.poll();
+        if (bb != null) {
+            POOLED.decrementAndGet();
+            if (bb.capacity() >= bytes) {
+                bb.clear();
+                return bb;
+            }
+        }
+        return ByteBuffer.allocateDirect(bytes);
+    }
+
+    static void give(ByteBuffer bb) {
+        if (POOLED.incrementAndGet() <= MAX_POOLED) {
+            POOL.offer(bb);
+        }
+        else {
+            POOLED.decrementAndGet();
+        }
+    }
+
+    /**
+     * refills its buffer with the whole rows or blocks following the last ones read
+     */
+    private final class ChannelInput extends Input {
+        private final int to;
+        private int next;
+        private FileChannel in;
+        private ByteBuffer bb;
+
+        ChannelInput(int from, int to) {
+            this.next = from;
+            this.to = to;
+        }
+
+        @Override
+        boolean next() {
+            if (next >= to) {
+                close();
+                return false;
+            }
+            try {
+                if (in == null) {
+                    in = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+                    bb = take(bufferBytes);
+                }
+                bb.clear();
+                bb.limit(Math.min(bb.capacity(), to - next));
+                while (bb.hasRemaining()) {
+                    if (in.read(bb, next + bb.position()) < 0) {
+                        throw new IllegalStateException("segment " + file + " ends before " + to);
+                    }
+                }
+                bb.flip();
+                int bytes = wholeRecords(bb);
+                if (bytes == 0) {
+                    throw new IllegalStateException("segment " + file + " has a block at " + next
+                            + " larger than the io buffer of " + bb.capacity());
+                }
+                bb.limit(bytes);
+                next += bytes;
+                return true;
+            }
+            catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        @Override
+        ByteBuffer buffer() {
+            return bb;
+        }
+
+        @Override
+        public void close() {
+            if (in == null) {
+                return;
+            }
+            try {
+                in.close();
+            }
+            catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            finally {
+                in = null;
+                give(bb);
+                bb = null;
+            }
+        }
+    }
+}
@@ -0,0 +1,24 @@
+package com.gearwheel.externalsort;
+
+/**
+ * When written segments and the idx are forced to disk
+ *
+ * @author gear-wheel
+ */
+public enum Durability {
+
+    /**
+     * never forced, left to the page cache. used for runs and intermediate runs
+     */
+    NONE,
+
+    /**
+     * dirty segments and the idx are forced once when the storage is closed
+     */
+    ON_CLOSE,
+
+    /**
+     * a segment is forced once when it is sealed by the next one, the rest when the storage is closed
+     */
+    PER_SEGMENT
+}
@@ -5,9 +5,14 @@ import org.slf4j.LoggerFactory;
 
 import java.io.File;
 import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
 import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Consumer;
+import java.util.function.ToLongFunction;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 /**
  * External sorting <br> of equal length per row for long type <br>
@@ -32,13 +37,51 @@ public final class FastLongBaseExternalSort<H> implements AutoCloseable {
     private static final Logger log = LoggerFactory.getLogger(FastLongBaseExternalSort.class);
 
     private final Map<H, Integer> head;
+    /** heads in column order */
+    private final List<H> headOrder;
+    /** a boxed line is unboxed here first, so a missing value never leaves a part of it in the buffer */
+    private final long[] line;
 
-    private final List<long[]> memoryStorage;
+    private RowBuffer memoryStorage;
+    private final AsyncSpiller spiller;
+    /** null if every run is one buffer */
+    private final ReplacementSelection selection;
     private final int diskLineNum;
+    /** run buffers are {@link OffHeapRowBuffer}s */
+    private final boolean offHeap;
     private final Comparator<long[]> comparator;
+    private final RadixSorter radixSorter;
+    /** normalized first key the merges compare first, null if sorted by a comparator or comparisons are counted */
+    private final ToLongFunction<long[]> prefix;
 
+    private final int maxMergeFanIn;
+    private final int maxPendingRuns;
+    private final int mergeThreads;
+    /** rows kept in top-k mode, 0 if all rows are sorted */
+    private final int limit;
+    /** first row that can't be in the top k anymore */
+    private long[] cutoff;
+    /** rows kept in the buffer by the last top-k selection or replacement selection spill */
+    private int retainedRows;
+    /** null if equal rows are all kept */
+    private final RowCombiner combiner;
+
+    private final File workdir;
+    private final SegmentFormat format;
+    private final IoBackend ioBackend;
+    private final int ioBufferBytes;
+    /** runs of the sorter, null in top-k mode, its rows never leave the buffer */
     private final LongBaseStorage in;
     private LongBaseStorage out;
+    private final Durability outDurability;
+    private final MetricsRecorder metrics;
+    /** fences of the out storage, null if sorted by a comparator */
+    private FenceIndex fences;
+    private final List<LongBaseStorage> mergeStorages = new ArrayList<>();
+    /** run storages of the writers, guarded by itself */
+    private final List<LongBaseStorage> writerStorages = new ArrayList<>();
+    private final AtomicInteger openWriters = new AtomicInteger();
+    private int mergeStorageNum;
 
 
     /**
@@ -52,18 +95,112 @@ public final class FastLongBaseExternalSort<H> implements AutoCloseable {
                                     Collection<H> heads,
                                     Comparator<long[]> comparator,
                                     int segmentSizeBytes) {
-        if (workdir == null || !workdir.isDirectory()) {
+        this(FastLongBaseExternalSort.<H>builder(workdir, heads)
+                .comparator(comparator)
+                .segmentSizeBytes(segmentSizeBytes));
+    }
+
+    private FastLongBaseExternalSort(Builder<H> builder) {
+        if (builder.workdir == null || !builder.workdir.isDirectory()) {
             throw new IllegalArgumentException("input File object is not a directory");
         }
 
-        this.in = new LongBaseStorage(workdir, "data", segmentSizeBytes, false);
-        this.head = createHeadMap(heads);
-        this.diskLineNum = segmentSizeBytes / (head.size() * Long.BYTES);
-        this.memoryStorage = new ArrayList<>(diskLineNum);
-        this.comparator = comparator;
+        this.head = createHeadMap(builder.heads);
+        this.headOrder = new ArrayList<>(builder.heads);
+        this.line = new long[headOrder.size()];
+        this.metrics = new MetricsRecorder(builder.listener, builder.countComparisons);
+        if (builder.keyColumns != null) {
+            this.radixSorter = new RadixSorter(builder.keyColumns, builder.keyMasks);
+            this.radixSorter.checkColumns(head.size());
+            this.comparator = metrics.counting(radixSorter.comparator());
+        }
+        else {
+            this.radixSorter = null;
+            this.comparator = metrics.counting(Objects.requireNonNull(builder.comparator, "comparator or key columns is required"));
+        }
+        // a counted comparator is wrapped, so every comparison is still counted
+        this.prefix = comparator instanceof KeyComparator ? ((KeyComparator) comparator)::prefix : null;
+
+        final int rowBytes = head.size() * Long.BYTES;
+        int segmentSizeBytes = builder.segmentSizeBytes;
+        final long memoryBudget = builder.memoryBudget();
+        if (memoryBudget > 0) {
+            if (builder.limit > 0) {
+                throw new IllegalArgumentException("a sorter with a limit keeps its rows in memory, a memory budget can't be used");
+            }
+            int buffers = builder.spillThreads > 0 ? builder.maxPendingRuns + 1 : 1;
+            // one run is one segment
+            segmentSizeBytes = rowsOfBudget(memoryBudget / buffers, head.size(), radixSorter != null, builder.offHeap) * rowBytes;
+            log.info("run buffers of {} rows for the memory budget {}", segmentSizeBytes / rowBytes, ExternalSortUtils.format(memoryBudget));
+        }
+
+        this.workdir = builder.workdir;
+        this.format = Objects.requireNonNull(builder.segmentFormat, "segment format");
+        this.ioBackend = Objects.requireNonNull(builder.ioBackend, "io backend");
+        this.ioBufferBytes = builder.ioBufferBytes;
+        this.in = builder.limit > 0 ? null
+                : new LongBaseStorage(workdir, "data", segmentSizeBytes, false, format, head.size(), ioBackend, ioBufferBytes);
+        this.diskLineNum = segmentSizeBytes / rowBytes;
+        this.offHeap = builder.offHeap;
+        this.limit = builder.limit;
+        this.combiner = builder.combiner;
+        if (limit > 0 && combiner != null) {
+            throw new IllegalArgumentException("a sorter with a limit can't combine rows, the cutoff may drop a part of them");
+        }
+        if (limit > 0) {
+            if ((long) limit * 2 * head.size() > Integer.MAX_VALUE - 8) {
+                throw new IllegalArgumentException("limit is too large to be kept in memory: " + limit);
+            }
+            if (builder.spillThreads > 0) {
+                throw new IllegalArgumentException("a sorter with a limit never spills, async spill can't be used");
+            }
+            // room for k more rows between two selections
+            this.memoryStorage = newRunBuffer(2 * limit);
+        }
+        else {
+            this.memoryStorage = newRunBuffer(diskLineNum);
+        }
+        if (builder.replacementSelection) {
+            if (limit > 0 || builder.spillThreads > 0) {
+                throw new IllegalArgumentException("replacement selection can't be used with a limit or async spill");
+            }
+            if (diskLineNum < 2) {
+                throw new IllegalArgumentException("replacement selection needs a run buffer of at least two rows");
+            }
+            this.selection = new ReplacementSelection(in, comparator, radixSorter, combiner, metrics);
+        }
+        else {
+            this.selection = null;
+        }
+        if (builder.maxMergeFanIn < 2) {
+            throw new IllegalArgumentException("max merge fan-in should be at least 2");
+        }
+        this.maxMergeFanIn = builder.maxMergeFanIn;
+        this.maxPendingRuns = builder.maxPendingRuns;
+        this.mergeThreads = builder.mergeThreads;
+        this.outDurability = Objects.requireNonNull(builder.durability, "durability");
+        this.spiller = builder.spillThreads > 0
+                ? new AsyncSpiller(builder.spillThreads, builder.maxPendingRuns,
+                        () -> newRunBuffer(diskLineNum),
+                        buffer -> sortAndFlush(buffer, in, true))
+                : null;
+        if (builder.jmxName != null) {
+            metrics.register(builder.jmxName);
+        }
         log.info("may use {} at least ", ExternalSortUtils.format(memorySize()));
     }
 
+    /**
+     * builder of sorter
+     * @param workdir  this directory  should be empty
+     * @param heads just use for append content to get idx of line
+     * @return builder
+     * @param <H> type of head
+     */
+    public static <H> Builder<H> builder(File workdir, Collection<H> heads) {
+        return new Builder<>(workdir, heads);
+    }
+
     /**
      * foreach of exist sorted file
      *
@@ -73,22 +210,166 @@ public final class FastLongBaseExternalSort<H> implements AutoCloseable {
      * @throws Exception ex
      */
     public static void forEachSorted(File directory, int headSize, Consumer<List<Long>> action) throws Exception {
-        try (LongBaseStorage longBaseStorage = new LongBaseStorage(directory, "out", 0, true)) {
+        try (LongBaseStorage longBaseStorage = new LongBaseStorage(directory, "out", 0, true, SegmentFormat.RAW, headSize)) {
             doForEach(longBaseStorage, headSize, action);
         }
     }
 
+    /**
+     * cursor of exist sorted file, the cursor owns the opened files until closed
+     *
+     * @param directory target dir
+     * @param headSize  head size
+     * @return cursor
+     */
+    public static SortedRowCursor openCursor(File directory, int headSize) {
+        return new SortedRowCursor(new LongBaseStorage(directory, "out", 0, true, SegmentFormat.RAW, headSize), headSize, true);
+    }
+
+    /**
+     * rows of exist sorted file from the first one whose most significant key is not before {@code key} in sort order
+     *
+     * @param directory target dir
+     * @param headSize  head size
+     * @param key       key of the first key column
+     * @return cursor, owns the opened files until closed
+     */
+    public static SortedRowCursor seek(File directory, int headSize, long key) {
+        LongBaseStorage storage = new LongBaseStorage(directory, "out", 0, true, SegmentFormat.RAW, headSize);
+        FenceIndex fences = readFences(storage);
+        return fences.range(storage, key, -1L ^ fences.mask, true);
+    }
+
+    /**
+     * rows of exist sorted file whose most significant key is in {@code [from, to]}, from is the larger key if descending
+     *
+     * @param directory target dir
+     * @param headSize  head size
+     * @param from      first key, inclusive
+     * @param to        last key, inclusive
+     * @return cursor, owns the opened files until closed
+     */
+    public static SortedRowCursor range(File directory, int headSize, long from, long to) {
+        LongBaseStorage storage = new LongBaseStorage(directory, "out", 0, true, SegmentFormat.RAW, headSize);
+        return readFences(storage).range(storage, from, to, true);
+    }
+
+    /**
+     * rows of exist sorted file in order, the stream can be made {@code parallel()}, see {@link #stream()}
+     *
+     * @param directory target dir
+     * @param headSize  head size
+     * @return stream, owns the opened files until closed
+     */
+    public static Stream<long[]> stream(File directory, int headSize) {
+        return rowStream(new LongBaseStorage(directory, "out", 0, true, SegmentFormat.RAW, headSize), true);
+    }
+
+    /**
+     * k-way merge of exist sorted files into the sorted file of another dir, with the fence index of the spec
+     * <p>
+     *     the rows are read straight from the segments of every dir and never sorted again, so the sorted files
+     *     of several sorters, e.g. one per process, are combined by one sequential pass. every dir should be sorted
+     *     by the spec, equal rows keep the order of the dirs. the merged file can be opened like a sorted file,
+     *     a sorted file already in the target dir is replaced once the merge succeeded.
+     *     the merged file is written in the format of the sorted files, dirs of different formats are rejected
+     * </p>
+     *
+     * @param directories sorted dirs
+     * @param headSize    head size
+     * @param spec        sort spec of every dir
+     * @param target      target dir, not one of the sorted dirs
+     * @return rows merged
+     */
+    public static long mergeSorted(List<File> directories, int headSize, SortSpec spec, File target) {
+        return SortedFileMerger.merge(directories, headSize, spec.comparator(), spec, target);
+    }
+
+    /**
+     * k-way merge of exist sorted files into the sorted file of another dir, no fence index is written,
+     * see {@link #mergeSorted(List, int, SortSpec, File)}
+     *
+     * @param directories sorted dirs
+     * @param headSize    head size
+     * @param comparator  comparator every dir is sorted by
+     * @param target      target dir, not one of the sorted dirs
+     * @return rows merged
+     */
+    public static long mergeSorted(List<File> directories, int headSize, Comparator<long[]> comparator, File target) {
+        return SortedFileMerger.merge(directories, headSize, comparator, null, target);
+    }
+
+    /**
+     * k-way merge of exist sorted files, every row is passed to the consumer in order
+     *
+     * @param directories sorted dirs
+     * @param headSize    head size
+     * @param spec        sort spec of every dir
+     * @param action      consumer, the array is reused for the next row
+     * @return rows merged
+     */
+    public static long mergeSorted(List<File> directories, int headSize, SortSpec spec, Consumer<long[]> action) {
+        return SortedFileMerger.merge(directories, headSize, spec.comparator(), action);
+    }
+
+    /**
+     * k-way merge of exist sorted files, every row is passed to the consumer in order
+     *
+     * @param directories sorted dirs
+     * @param headSize    head size
+     * @param comparator  comparator every dir is sorted by
+     * @param action      consumer, the array is reused for the next row
+     * @return rows merged
+     */
+    public static long mergeSorted(List<File> directories, int headSize, Comparator<long[]> comparator, Consumer<long[]> action) {
+        return SortedFileMerger.merge(directories, headSize, comparator, action);
+    }
+
+    private static Stream<long[]> rowStream(LongBaseStorage storage, boolean ownStorage) {
+        final SortedRowSpliterator spliterator = new SortedRowSpliterator(storage);
+        return StreamSupport.stream(spliterator, false).onClose(() -> {
+            // splits left before their end still hold a segment
+            spliterator.close();
+            if (ownStorage) {
+                try {
+                    storage.close();
+                }
+                catch (Exception e) {
+                    throw new IllegalStateException("can't close storage " + storage.prefix, e);
+                }
+            }
+        });
+    }
+
+    private static FenceIndex readFences(LongBaseStorage storage) {
+        try {
+            return FenceIndex.read(storage.directory, storage.prefix, storage.columns);
+        }
+        catch (RuntimeException e) {
+            try {
+                storage.close();
+            }
+            catch (Exception ignore) { }
+            throw e;
+        }
+    }
+
     private static void doForEach(LongBaseStorage storage, int lineSize, Consumer<List<Long>> action) {
         Objects.requireNonNull(action);
 
         List<Long> list = new ArrayList<>(lineSize);
-        storage.forEach(l -> {
-            list.add(l);
-            if (list.size() >= lineSize) {
-                action.accept(list);
-                list.clear();
+        SortedRowCursor cursor = new SortedRowCursor(storage, lineSize, false);
+        while (cursor.next()) {
+            for (int i = 0; i < lineSize; i++) {
+                list.add(cursor.getLong(i));
             }
-        });
+            action.accept(list);
+            list.clear();
+        }
+    }
+
+    private RowBuffer newRunBuffer(int rows) {
+        return offHeap ? new OffHeapRowBuffer(head.size(), rows) : new LongRowBuffer(head.size(), rows);
     }
 
     /**
@@ -96,7 +377,60 @@ public final class FastLongBaseExternalSort<H> implements AutoCloseable {
      * @return bytes
      */
     public long memorySize() {
-        return diskLineNum * (8L * head.size() + 16 + 4) + 40;
+        if (offHeap) {
+            // rows and their scratch are off the heap, so are the sorts
+            long size = OffHeapRowBuffer.memorySize(head.size(), limit > 0 ? 2 * limit : diskLineNum);
+            return spiller == null ? size : size * (maxPendingRuns + 1);
+        }
+        if (limit > 0) {
+            // selection buffer and the array the kept rows are moved to
+            int rows = 2 * limit;
+            long size = LongRowBuffer.memorySize(head.size(), rows) + (long) rows * head.size() * Long.BYTES;
+            return radixSorter == null ? size : size + RadixSorter.memorySize(rows);
+        }
+        long size = LongRowBuffer.memorySize(head.size(), diskLineNum);
+        if (radixSorter != null) {
+            size += RadixSorter.memorySize(diskLineNum);
+        }
+        return spiller == null ? size : size * (maxPendingRuns + 1);
+    }
+
+    /**
+     * the most rows one run buffer can hold in the given bytes, with the radix sort arrays if sorted by key columns
+     * @param bytes bytes of one buffer
+     * @param columns columns per row
+     * @param radix sorted by key columns
+     * @return rows, at most one segment of rows
+     */
+    static int rowsOfBudget(long bytes, int columns, boolean radix) {
+        return rowsOfBudget(bytes, columns, radix, false);
+    }
+
+    /**
+     * the most rows one run buffer can hold in the given bytes
+     * @param bytes bytes of one buffer
+     * @param columns columns per row
+     * @param radix sorted by key columns
+     * @param offHeap the buffer is an {@link OffHeapRowBuffer}, it sorts in its scratch buffer
+     * @return rows, at most one segment of rows
+     */
+    static int rowsOfBudget(long bytes, int columns, boolean radix, boolean offHeap) {
+        // see LongRowBuffer.memorySize, OffHeapRowBuffer.memorySize and RadixSorter.memorySize
+        long rowCost = LongRowBuffer.memorySize(columns, 1) - LongRowBuffer.memorySize(columns, 0);
+        long fixed = LongRowBuffer.memorySize(columns, 0);
+        if (offHeap) {
+            rowCost = OffHeapRowBuffer.memorySize(columns, 1);
+            fixed = 0;
+        }
+        else if (radix) {
+            rowCost += RadixSorter.memorySize(1) - RadixSorter.memorySize(0);
+            fixed += RadixSorter.memorySize(0);
+        }
+        long rows = Math.min((bytes - fixed) / rowCost, LongBaseStorage.MAX_SEGMENT_BYTES / (columns * Long.BYTES));
+        if (rows < 1) {
+            throw new IllegalArgumentException("memory budget of " + bytes + " bytes per run buffer can't hold a row");
+        }
+        return (int) rows;
     }
 
     private Map<H, Integer> createHeadMap(Collection<H> columnNames) {
@@ -117,19 +451,115 @@ public final class FastLongBaseExternalSort<H> implements AutoCloseable {
         if (head2RowMap == null || head2RowMap.isEmpty()) {
             return;
         }
+        checkSpillError();
 
-        long[] longs = new long[head.size()];
+        final List<H> heads = headOrder;
         // build a line order by head
-        for (Map.Entry<H, Integer> headName2Idx : head.entrySet()) {
-            longs[headName2Idx.getValue()] = head2RowMap.get(headName2Idx.getKey());
+        for (int i = 0; i < heads.size(); i++) {
+            line[i] = value(head2RowMap.get(heads.get(i)), heads.get(i));
+        }
+        memoryStorage.add(line);
+
+        if (memoryStorage.isFull()) {
+            spill();
+        }
+    }
+
+    private static long value(Long value, Object head) {
+        if (value == null) {
+            throw new IllegalArgumentException("no value of head " + head);
+        }
+        return value;
+    }
+
+    /**
+     * append line without boxing
+     * @param row values in head order
+     */
+    public void appendRow(long... row) {
+        if (row.length != head.size()) {
+            throw new IllegalArgumentException("row should have " + head.size() + " values but has " + row.length);
+        }
+        checkSpillError();
+
+        memoryStorage.add(row);
+
+        if (memoryStorage.isFull()) {
+            spill();
         }
-        memoryStorage.add(longs);
+    }
 
-        if (memoryStorage.size() >= diskLineNum) {
-            sortAndFlush(true);
+    /**
+     * append multi line from column arrays without boxing
+     * @param columns one array per column in head order
+     * @param from first row, inclusive
+     * @param to last row, exclusive
+     */
+    public void appendColumns(long[][] columns, int from, int to) {
+        if (columns.length != head.size()) {
+            throw new IllegalArgumentException("should have " + head.size() + " columns but has " + columns.length);
+        }
+        for (long[] column : columns) {
+            if (from < 0 || from > to || column.length < to) {
+                throw new IndexOutOfBoundsException("rows [" + from + ", " + to + ") out of column of length " + column.length);
+            }
+        }
+        checkSpillError();
+
+        final int cols = columns.length;
+        int row = from;
+        while (row < to) {
+            final int rows = Math.min(to - row, memoryStorage.remaining());
+            final int offset = memoryStorage.nextRows(rows);
+            final RowBuffer buffer = memoryStorage;
+            for (int c = 0; c < cols; c++) {
+                final long[] column = columns[c];
+                for (int r = 0; r < rows; r++) {
+                    buffer.put(offset + r * cols + c, column[row + r]);
+                }
+            }
+            row += rows;
+
+            if (memoryStorage.isFull()) {
+                spill();
+            }
         }
     }
 
+    /**
+     * append multi line stored back to back, values of a line in head order
+     * @param rowMajor all remaining values are appended
+     */
+    public void appendRows(LongBuffer rowMajor) {
+        if (rowMajor.remaining() % head.size() != 0) {
+            throw new IllegalArgumentException("remaining " + rowMajor.remaining() + " values are not whole lines of " + head.size());
+        }
+        checkSpillError();
+
+        final int cols = head.size();
+        while (rowMajor.hasRemaining()) {
+            final int rows = Math.min(rowMajor.remaining() / cols, memoryStorage.remaining());
+            final int offset = memoryStorage.nextRows(rows);
+            memoryStorage.put(offset, rowMajor, rows * cols);
+
+            if (memoryStorage.isFull()) {
+                spill();
+            }
+        }
+    }
+
+    /**
+     * append multi line stored back to back in the byte order of the buffer, values of a line in head order
+     * @param rowMajor all remaining bytes are appended
+     */
+    public void appendRows(ByteBuffer rowMajor) {
+        if (rowMajor.remaining() % (head.size() * Long.BYTES) != 0) {
+            throw new IllegalArgumentException("remaining " + rowMajor.remaining() + " bytes are not whole lines of " + head.size() + " long");
+        }
+        appendRows(rowMajor.asLongBuffer());
+        rowMajor.position(rowMajor.limit());
+    }
+
     /**
      * append multi line
      * @param head2RowListMap head  to row list map
@@ -138,6 +568,7 @@ public final class FastLongBaseExternalSort<H> implements AutoCloseable {
         if (head2RowListMap == null || head2RowListMap.isEmpty()) {
             return;
         }
+        checkSpillError();
         int size = 0;
         List<Long> list;
         for (Map.Entry<H, List<Long>> headName2RowListEntry : head2RowListMap.entrySet()) {
@@ -148,40 +579,133 @@ public final class FastLongBaseExternalSort<H> implements AutoCloseable {
             }
             size = list.size();
         }
+        // resolve the columns once
+        final List<List<Long>> columns = new ArrayList<>(headOrder.size());
+        for (H h : headOrder) {
+            List<Long> column = head2RowListMap.get(h);
+            if (column == null) {
+                throw new IllegalArgumentException("no rows of head " + h);
+            }
+            columns.add(column);
+        }
         for (int i = 0; i < size; i++) {
-            long[] longs = new long[head.size()];
             // build a line order by head
-            for (Map.Entry<H, Integer> headName2Idx : head.entrySet()) {
-                longs[headName2Idx.getValue()] = head2RowListMap.get(headName2Idx.getKey()).get(i);
+            for (int c = 0; c < columns.size(); c++) {
+                line[c] = value(columns.get(c).get(i), headOrder.get(c));
             }
-            memoryStorage.add(longs);
+            memoryStorage.add(line);
 
-            if (memoryStorage.size() >= diskLineNum) {
-                sortAndFlush(true);
+            if (memoryStorage.isFull()) {
+                spill();
             }
         }
     }
 
-    private void sortAndFlush(boolean createNewSegment) {
-        memoryStorage.sort(comparator);
+    /**
+     * a writer for one producer thread, writers append at once without a lock
+     * <p>
+     *     every writer has its own run buffer and its own storage of runs, a full buffer is sorted and written
+     *     as a run on the producer thread. close every writer before {@link #sortAll()}, its last rows are written then,
+     *     the runs of all writers are merged with the runs of the sorter.
+     *     every writer takes one more run buffer than {@link #memorySize()}, replacement selection and async spill
+     *     only apply to the appends of the sorter itself
+     * </p>
+     * @return writer, to be used by one thread at a time
+     * @throws IllegalStateException if the sorter has a limit
+     */
+    public Writer newWriter() {
+        if (limit > 0) {
+            throw new IllegalStateException("a sorter with a limit keeps its rows in one buffer, writers can't be used");
+        }
+        LongBaseStorage storage;
+        synchronized (writerStorages) {
+            storage = newStorage("writer" + writerStorages.size(), in.segmentSizeBytes);
+            writerStorages.add(storage);
+        }
+        openWriters.incrementAndGet();
+        return new Writer(storage);
+    }
+
+    private void checkSpillError() {
+        if (spiller != null) {
+            spiller.checkError();
+        }
+    }
 
-        flush(in);
+    /**
+     * spill the full buffer, on the spill threads if asynchronous
+     */
+    private void spill() {
+        if (limit > 0) {
+            selectTopK();
+            return;
+        }
+        metrics.appended(memoryStorage.size() - retainedRows);
+        if (selection != null) {
+            selection.spill(memoryStorage, diskLineNum);
+            retainedRows = memoryStorage.size();
+        }
+        else if (spiller == null) {
+            sortAndFlush(memoryStorage, in, true);
+        }
+        else {
+            memoryStorage = spiller.spill(memoryStorage);
+        }
+    }
 
-        if (createNewSegment) {
-            in.createNewSegment();
+    /**
+     * wait for asynchronous spills, then spill the current buffer
+     */
+    private void flushAll() {
+        if (spiller != null) {
+            spiller.await();
+        }
+        metrics.appended(memoryStorage.size() - retainedRows);
+        retainedRows = 0;
+        if (selection != null) {
+            selection.finish(memoryStorage);
+            return;
         }
+        sortAndFlush(memoryStorage, in, false);
     }
 
-    private void flush(LongBaseStorage storage) {
-        final List<long[]> bucket = memoryStorage;
+    /**
+     * sort and combine a buffer, then write it as one run
+     * @param buffer full buffer, cleared
+     * @param target input storage or the storage of a writer
+     * @param createNewSegment start the segment of the next run
+     */
+    private void sortAndFlush(RowBuffer buffer, LongBaseStorage target, boolean createNewSegment) {
+        final long start = System.nanoTime();
+        final int bufferRows = buffer.size();
+        sortBuffer(buffer);
+        if (combiner != null) {
+            buffer.combineSorted(comparator, combiner);
+        }
+        final int rows = buffer.size();
+        final long sorted = System.nanoTime();
+        metrics.sorted(bufferRows, sorted - start);
 
-        bucket.forEach(line -> {
-            for (long l : line) {
-                storage.putLongUncheck(l);
+        // runs of asynchronous spills are written one at a time
+        synchronized (target) {
+            final long before = target.getWrittenSize();
+            buffer.writeTo(target);
+            buffer.clear();
+            target.commit();
+
+            final long bytes = target.getWrittenSize() - before;
+            if (createNewSegment) {
+                target.createNewSegment();
             }
-        });
+            if (rows > 0) {
+                metrics.runWritten(rows, bytes, sorted - start, System.nanoTime() - sorted);
+            }
+        }
+    }
 
-        bucket.clear();
+    private void flush(LongBaseStorage storage) {
+        memoryStorage.writeTo(storage);
+        memoryStorage.clear();
         storage.commit();
     }
 
@@ -193,7 +717,10 @@ public final class FastLongBaseExternalSort<H> implements AutoCloseable {
      * @param action consumer
      */
     public void forEachForTest(Consumer<List<Long>> action) {
-        sortAndFlush(false);
+        if (in == null) {
+            throw new IllegalStateException("a sorter with a limit writes no runs");
+        }
+        flushAll();
 
         doForEach(in, head.size(), action);
     }
@@ -207,70 +734,472 @@ public final class FastLongBaseExternalSort<H> implements AutoCloseable {
         doForEach(out, head.size(), action);
     }
 
-    private long[] readLine(ByteBuffer byteBuffer) {
+    /**
+     * pull style reading of the sorted result, nothing is allocated per row
+     * @return cursor, close it when done, the sorter stays open
+     */
+    public SortedRowCursor cursor() {
+        if (out == null) {
+            throw new RuntimeException(" please use sortAll first !");
+        }
 
-        long[] longs = new long[head.size()];
+        return new SortedRowCursor(out, head.size(), false);
+    }
 
-        for (int i = 0; i < head.size(); i++) {
-            longs[i] = byteBuffer.getLong();
+    /**
+     * rows from the first one whose most significant key is not before {@code key} in sort order, found through the fence index
+     * @param key key of the first key column
+     * @return cursor to the end of the sorted result, close it when done
+     * @throws IllegalStateException if sorted by a comparator
+     */
+    public SortedRowCursor seek(long key) {
+        checkFences();
+        return fences.range(out, key, -1L ^ fences.mask, false);
+    }
+
+    /**
+     * rows whose most significant key is in {@code [from, to]}, in the order of the key column, from is the larger key if descending
+     * @param from first key, inclusive
+     * @param to last key, inclusive
+     * @return cursor, close it when done
+     * @throws IllegalStateException if sorted by a comparator
+     */
+    public SortedRowCursor range(long from, long to) {
+        checkFences();
+        return fences.range(out, from, to, false);
+    }
+
+    /**
+     * rows of the sorted result in order, every row is a new array.
+     * {@code parallel()} splits on segment boundaries and on row or block starts inside a segment,
+     * the splits read the segments at once without copying them, ordered reductions keep the sorted order
+     * <pre>{@code
+     * try (Stream<long[]> rows = externalSort.stream()) {
+     *     long sum = rows.parallel().mapToLong(row -> row[1]).sum();
+     * }
+     * }</pre>
+     * @return stream, close it to release the segments it mapped, the sorter stays open
+     */
+    public Stream<long[]> stream() {
+        if (out == null) {
+            throw new RuntimeException(" please use sortAll first !");
+        }
+
+        return rowStream(out, false);
+    }
+
+    private void checkFences() {
+        if (out == null) {
+            throw new RuntimeException(" please use sortAll first !");
+        }
+        if (fences == null) {
+            throw new IllegalStateException("seek and range need key columns, there is no fence index of a comparator");
         }
-        return longs;
     }
 
+    /**
+     * merge all runs into the out storage
+     * <p>
+     *     if there are more runs than the max merge fan-in, the smallest runs are merged first into
+     *     intermediate runs, until one final merge reads at most max merge fan-in runs.
+     *     the final merge is split into key ranges merged in parallel if merge threads are configured.
+     *     rows can be appended after a sort, the next sort merges only their runs with the sorted result read once,
+     *     so a delta costs its own sort and one scan of the previous result. the runs are deleted once merged.
+     *     cursors and streams of the previous result should be closed first
+     * </p>
+     */
     public void sortAll() {
+        if (limit > 0) {
+            sortTopK();
+            return;
+        }
+        if (openWriters.get() > 0) {
+            throw new IllegalStateException(openWriters.get() + " writers are still open, close them before sortAll");
+        }
         // flush
-        sortAndFlush(false);
+        flushAll();
+
+        List<Run> runs = initialRuns();
+        final LongBaseStorage previous = out;
+        if (previous != null) {
+            if (runs.isEmpty()) {
+                log.info("nothing appended since the last sort");
+                return;
+            }
+            // the sorted result is one more run, it wins ties against the rows appended later
+            runs.add(0, new Run(nonEmptySegments(previous), previous.getWrittenSize(), null, previous));
+        }
+        if (runs.size() == 1 && (combiner == null || selection == null)) {
+            // already sorted and combined, the run becomes the out files
+            this.out = newStorage("out", 0);
+            out.durability(outDurability);
+            out.adopt(runs.get(0).source, runs.get(0).segments);
+            log.info("one run of {}, nothing to merge", ExternalSortUtils.format(runs.get(0).bytes));
+            resetRuns();
+            writeFences();
+            log.info("sorted {}", metrics.finished());
+            return;
+        }
+        runs = mergePasses(runs);
+
+        final long start = System.nanoTime();
+        // the previous result is read by the merge, the new one is written beside it
+        final String prefix = previous == null ? "out" : "next";
+        LongBaseStorage merged;
+        if (mergeThreads > 1 && !runs.isEmpty()) {
+            merged = new ParallelMerger(head.size(), comparator, this.prefix, mergeThreads, format, combiner, ioBackend, ioBufferBytes)
+                    .merge(runs.stream().map(run -> run.segments).collect(Collectors.toList()), workdir, prefix, outDurability);
+        }
+        else {
+            final long runBytes = runs.stream().mapToLong(run -> run.bytes).sum();
+            final int outFileBytes = (int) Math.min(runBytes, LongBaseStorage.MAX_SEGMENT_BYTES);
+
+            merged = newStorage(prefix, outFileBytes);
+            merged.durability(outDurability);
 
-        final int outFileBytes = (int) Math.min(in.getCurrentSize(), Integer.MAX_VALUE);
+            merge(runs, merged);
+        }
+        metrics.merged(runs.size(), runs.stream().mapToLong(run -> run.bytes).sum(), merged.getWrittenSize(), System.nanoTime() - start);
+        if (previous != null) {
+            merged = replaceOut(merged);
+        }
+        this.out = merged;
+        clearMergeStorages();
+        resetRuns();
+        writeFences();
+        log.info("sorted {}", metrics.finished());
+    }
+
+    private static List<Segment> nonEmptySegments(LongBaseStorage storage) {
+        List<Segment> segments = new ArrayList<>(storage.segments.size());
+        for (Segment segment : storage.segments) {
+            if (segment.position() > 0) {
+                segments.add(segment);
+            }
+        }
+        return segments;
+    }
 
-        final int outMaxLineNum = outFileBytes / (head.size() * Long.BYTES);
+    /**
+     * swap the merged files in place of the previous out files.
+     * the previous files are renamed aside and deleted only once the merged ones are committed as the out files,
+     * so every step leaves both results committed on disk under one prefix or another
+     * @param merged storage of the new result
+     * @return the out storage holding the merged segments
+     */
+    private LongBaseStorage replaceOut(LongBaseStorage merged) {
+        merged.commit();
+        FenceIndex.delete(out.directory, out.prefix);
+        fences = null;
+
+        LongBaseStorage previous = newStorage("previous", 0);
+        previous.adopt(out, new ArrayList<>(out.segments));
+        previous.commit();
+        // only the idx is left
+        out.clear();
+
+        LongBaseStorage storage = newStorage("out", 0);
+        storage.durability(outDurability);
+        storage.adopt(merged, new ArrayList<>(merged.segments));
+        storage.commit();
+        merged.clear();
+        previous.clear();
+        return storage;
+    }
+
+    /**
+     * every run was merged into the out storage, drop them so the next sort only sees new rows
+     */
+    private void resetRuns() {
+        in.reset();
+        if (selection != null) {
+            selection.clearRuns();
+        }
+        synchronized (writerStorages) {
+            for (LongBaseStorage storage : writerStorages) {
+                storage.clear();
+                try {
+                    storage.close();
+                }
+                catch (Exception e) {
+                    throw new IllegalStateException("can't close storage " + storage.prefix, e);
+                }
+            }
+            writerStorages.clear();
+        }
+    }
+
+    /**
+     * @param prefix prefix of the files
+     * @param segmentSizeBytes segment size
+     * @return a new storage in the workdir, of the format and io backend of the runs
+     */
+    private LongBaseStorage newStorage(String prefix, int segmentSizeBytes) {
+        return new LongBaseStorage(workdir, prefix, segmentSizeBytes, false, format, head.size(), ioBackend, ioBufferBytes);
+    }
+
+    /**
+     * @return counters of this sorter so far
+     */
+    public SortMetrics metrics() {
+        return metrics.snapshot();
+    }
+
+    /**
+     * the out storage gets a fence index if sorted by key columns, a stale one is deleted
+     */
+    private void writeFences() {
+        out.commit();
+        if (radixSorter == null) {
+            FenceIndex.delete(out.directory, out.prefix);
+            return;
+        }
+        fences = FenceIndex.write(out, radixSorter.firstKeyColumn(), radixSorter.firstMask(),
+                outDurability != Durability.NONE);
+    }
+
+    /**
+     * @return runs of the input storage, one per segment unless runs come from replacement selection,
+     *         then the runs of the writers, one per segment
+     */
+    private List<Run> initialRuns() {
+        List<Run> runs = new ArrayList<>(in.segments.size());
+        if (selection == null) {
+            addSegmentRuns(in, runs);
+            addWriterRuns(runs);
+            return runs;
+        }
+        List<Integer> starts = selection.runStarts();
+        for (int i = 0; i < starts.size(); i++) {
+            int end = i + 1 < starts.size() ? starts.get(i + 1) : in.segments.size();
+            List<Segment> segments = new ArrayList<>(end - starts.get(i));
+            long bytes = 0L;
+            for (Segment segment : in.segments.subList(starts.get(i), end)) {
+                if (segment.position() > 0) {
+                    segments.add(segment);
+                    bytes += segment.position();
+                }
+            }
+            runs.add(new Run(segments, bytes, null, in));
+        }
+        addWriterRuns(runs);
+        return runs;
+    }
 
-        this.out = new LongBaseStorage(in.directory, "out", outFileBytes, false);
+    private void addWriterRuns(List<Run> runs) {
+        synchronized (writerStorages) {
+            for (LongBaseStorage storage : writerStorages) {
+                addSegmentRuns(storage, runs);
+            }
+        }
+    }
 
+    private static void addSegmentRuns(LongBaseStorage storage, List<Run> runs) {
+        for (Segment segment : storage.segments) {
+            if (segment.position() > 0) {
+                runs.add(new Run(Collections.singletonList(segment), segment.position(), null, storage));
+            }
+        }
+    }
 
-        final List<Segment.BufferedSegmentReader<long[]>> segments = in.segments.stream().map(x -> x.bufferedReader(this::readLine)).peek(Segment.BufferedSegmentReader::loadNewElement).collect(Collectors.toList());
-        Comparator<Segment.BufferedSegmentReader<long[]>> segmentComparator = (o1, o2) -> {
-            long[] x = o1.read();
-            long[] y = o2.read();
-            return comparator.compare(x, y);
-        };
+    /**
+     * drop the rows that can't be in the first {@code limit} rows anymore.
+     * if more than {@code limit} rows are left, they are sorted and cut, the last kept row becomes the cutoff
+     */
+    private void selectTopK() {
+        final RowBuffer buffer = memoryStorage;
+        metrics.appended(buffer.size() - retainedRows);
+        if (cutoff != null) {
+            // the rows kept by the last selection are not after the cutoff
+            buffer.retainBefore(limit, cutoff, comparator);
+        }
+        if (buffer.size() > limit) {
+            final long start = System.nanoTime();
+            final int rows = buffer.size();
+            sortBuffer(buffer);
+            if (cutoff == null) {
+                cutoff = new long[head.size()];
+            }
+            buffer.copySorted(limit - 1, cutoff);
+            buffer.retainSorted(limit);
+            metrics.sorted(rows, System.nanoTime() - start);
+        }
+        retainedRows = buffer.size();
+    }
 
-        PriorityQueue<Segment.BufferedSegmentReader<long[]>> segmentQueue = new PriorityQueue<>(segments.size(), segmentComparator);
-        segmentQueue.addAll(segments);
+    /**
+     * write the first {@code limit} rows to the out storage, the input storage is never written.
+     * the rows stay in the buffer, rows appended later are selected against them
+     */
+    private void sortTopK() {
+        selectTopK();
+        long start = System.nanoTime();
+        sortBuffer(memoryStorage);
+        metrics.sorted(memoryStorage.size(), System.nanoTime() - start);
 
-        long currentOutNum = 0L;
+        final int rowBytes = head.size() * Long.BYTES;
+        final long outBytes = RowBlockCodec.maxEncodedBytes(format, Math.max(memoryStorage.size(), 1), head.size());
+        if (out != null) {
+            out.clear();
+        }
+        this.out = newStorage("out", (int) Math.min(outBytes, LongBaseStorage.MAX_SEGMENT_BYTES / rowBytes * rowBytes));
+        out.durability(outDurability);
+        log.info("kept {} rows of the limit {}", memoryStorage.size(), limit);
+        start = System.nanoTime();
+        memoryStorage.writeTo(out);
+        out.commit();
+        metrics.flushed(System.nanoTime() - start);
+        retainedRows = memoryStorage.size();
+        writeFences();
+        log.info("sorted {}", metrics.finished());
+    }
 
-        while (!segmentQueue.isEmpty()) {
-            Segment.BufferedSegmentReader<long[]> poll = segmentQueue.poll();
+    private void sortBuffer(RowBuffer buffer) {
+        if (radixSorter != null) {
+            buffer.sort(radixSorter);
+        }
+        else {
+            buffer.sort(comparator);
+        }
+    }
 
-            memoryStorage.add(poll.read());
+    /**
+     * huffman merge plan, the first pass merges just enough runs that every later pass merges exactly max fan-in runs
+     * @param runs initial runs
+     * @return at most max fan-in runs
+     */
+    private List<Run> mergePasses(List<Run> runs) {
+        if (runs.size() <= maxMergeFanIn) {
+            return runs;
+        }
 
-            poll.loadNewElement();
+        PriorityQueue<Run> queue = new PriorityQueue<>(runs.size(), Comparator.comparingLong(run -> run.bytes));
+        queue.addAll(runs);
 
-            if (poll.read() != null) {
-                segmentQueue.add(poll);
+        int remainder = (runs.size() - 1) % (maxMergeFanIn - 1);
+        int fanIn = remainder == 0 ? maxMergeFanIn : remainder + 1;
+        while (queue.size() > maxMergeFanIn) {
+            List<Run> group = new ArrayList<>(fanIn);
+            long bytes = 0L;
+            for (int i = 0; i < fanIn; i++) {
+                Run run = queue.poll();
+                group.add(run);
+                bytes += run.bytes;
             }
 
-            if (memoryStorage.size() >= diskLineNum) {
-                currentOutNum += memoryStorage.size();
+            LongBaseStorage storage = newStorage("merge" + mergeStorageNum++, (int) Math.min(bytes, LongBaseStorage.MAX_SEGMENT_BYTES));
+            mergeStorages.add(storage);
+            final long start = System.nanoTime();
+            merge(group, storage);
+            metrics.merged(fanIn, bytes, storage.getWrittenSize(), System.nanoTime() - start);
 
-                if (currentOutNum >= outMaxLineNum) {
-                    out.createNewSegment();
-                    currentOutNum = 0L;
+            // intermediate inputs are not needed anymore
+            for (Run run : group) {
+                if (run.storage != null) {
+                    run.storage.clear();
+                    mergeStorages.remove(run.storage);
                 }
-                flush(out);
             }
+            queue.add(new Run(storage.segments, storage.getWrittenSize(), storage));
+            fanIn = maxMergeFanIn;
         }
+        log.info("merged into {} runs by {} intermediate merges", queue.size(), mergeStorageNum);
+        return new ArrayList<>(queue);
+    }
 
+    /**
+     * k-way merge of runs into target, the target creates a new segment when the current one can't hold the next row or block
+     * @param runs sorted runs
+     * @param target target storage
+     */
+    private void merge(List<Run> runs, LongBaseStorage target) {
+        final List<Segment.BufferedSegmentReader<long[]>> segments = runs.stream().map(x -> new Segment.BufferedSegmentReader<>(x.segments, RowBlockCodec.lineReader(format, head.size()))).peek(Segment.BufferedSegmentReader::loadNewElement).collect(Collectors.toList());
+        final LoserTree<long[]> segmentTree = new LoserTree<>(segments, comparator, prefix);
 
-        memoryStorage.removeIf(Objects::isNull);
-        flush(out);
+        if (combiner != null) {
+            mergeCombining(segmentTree, target);
+            return;
+        }
+
+        while (!segmentTree.isEmpty()) {
+            // the row is copied before its reader moves on
+            memoryStorage.add(segmentTree.peek());
+
+            segmentTree.next();
+
+            if (memoryStorage.isFull()) {
+                flush(target);
+            }
+        }
+
+        flush(target);
     }
 
+    /**
+     * same as the plain merge, but equal rows meeting at the head are combined before written
+     */
+    private void mergeCombining(LoserTree<long[]> segmentTree, LongBaseStorage target) {
+        final long[] acc = new long[head.size()];
+        boolean hasAcc = false;
+        while (!segmentTree.isEmpty()) {
+            long[] row = segmentTree.peek();
+            if (hasAcc && comparator.compare(acc, row) == 0) {
+                combiner.combine(acc, row);
+            }
+            else {
+                if (hasAcc) {
+                    memoryStorage.add(acc);
+                    if (memoryStorage.isFull()) {
+                        flush(target);
+                    }
+                }
+                System.arraycopy(row, 0, acc, 0, acc.length);
+                hasAcc = true;
+            }
+            segmentTree.next();
+        }
+        if (hasAcc) {
+            memoryStorage.add(acc);
+        }
+
+        flush(target);
+    }
+
+    private void clearMergeStorages() {
+        for (LongBaseStorage storage : mergeStorages) {
+            storage.clear();
+        }
+        mergeStorages.clear();
+    }
+
+    /**
+     * sorted run, made of one or more segments
+     */
+    private static final class Run {
+        final List<Segment> segments;
+        final long bytes;
+        /** owner of an intermediate run, null for runs in the input storage or of a writer */
+        final LongBaseStorage storage;
+        /** storage holding the segments */
+        final LongBaseStorage source;
+
+        Run(List<Segment> segments, long bytes, LongBaseStorage storage) {
+            this(segments, bytes, storage, storage);
+        }
+
+        Run(List<Segment> segments, long bytes, LongBaseStorage storage, LongBaseStorage source) {
+            this.segments = segments;
+            this.bytes = bytes;
+            this.storage = storage;
+            this.source = source;
+        }
+    }
 
     public void deleteOutFile() {
         if (out != null) {
             out.clear();
+            FenceIndex.delete(out.directory, out.prefix);
+            fences = null;
         }
     }
 
@@ -279,9 +1208,399 @@ public final class FastLongBaseExternalSort<H> implements AutoCloseable {
         if (out != null) {
             out.close();
         }
+        clearMergeStorages();
+
+        if (spiller != null) {
+            spiller.close();
+        }
+        memoryStorage.free();
+        synchronized (writerStorages) {
+            for (LongBaseStorage storage : writerStorages) {
+                storage.clear();
+                storage.close();
+            }
+            writerStorages.clear();
+        }
+        if (in != null) {
+            in.clear();
+            in.close();
+        }
+        metrics.unregister();
+    }
+
+
+    /**
+     * appends of one producer thread, see {@link #newWriter()}
+     */
+    public final class Writer implements AutoCloseable {
+        private final LongBaseStorage storage;
+        /** null once closed */
+        private RowBuffer buffer;
+
+        private Writer(LongBaseStorage storage) {
+            this.storage = storage;
+            this.buffer = newRunBuffer(diskLineNum);
+        }
+
+        /**
+         * append line without boxing
+         * @param row values in head order
+         */
+        public void appendRow(long... row) {
+            if (row.length != head.size()) {
+                throw new IllegalArgumentException("row should have " + head.size() + " values but has " + row.length);
+            }
+            checkOpen();
+
+            buffer.add(row);
+
+            if (buffer.isFull()) {
+                spill(true);
+            }
+        }
+
+        /**
+         * append multi line stored back to back, values of a line in head order
+         * @param rowMajor all remaining values are appended
+         */
+        public void appendRows(LongBuffer rowMajor) {
+            if (rowMajor.remaining() % head.size() != 0) {
+                throw new IllegalArgumentException("remaining " + rowMajor.remaining() + " values are not whole lines of " + head.size());
+            }
+            checkOpen();
+
+            final int cols = head.size();
+            while (rowMajor.hasRemaining()) {
+                final int rows = Math.min(rowMajor.remaining() / cols, buffer.remaining());
+                final int offset = buffer.nextRows(rows);
+                buffer.put(offset, rowMajor, rows * cols);
+
+                if (buffer.isFull()) {
+                    spill(true);
+                }
+            }
+        }
+
+        private void spill(boolean createNewSegment) {
+            metrics.appended(buffer.size());
+            sortAndFlush(buffer, storage, createNewSegment);
+        }
+
+        private void checkOpen() {
+            if (buffer == null) {
+                throw new IllegalStateException("writer is closed");
+            }
+        }
+
+        /**
+         * write the buffered rows as the last run of this writer
+         */
+        @Override
+        public void close() {
+            if (buffer == null) {
+                return;
+            }
+            try {
+                spill(false);
+            }
+            finally {
+                buffer.free();
+                buffer = null;
+                openWriters.decrementAndGet();
+            }
+        }
+    }
+
+    public static final class Builder<H> {
+        private final File workdir;
+        private final Collection<H> heads;
+        private Comparator<long[]> comparator;
+        private int[] keyColumns;
+        private long[] keyMasks;
+        private int segmentSizeBytes = 64 * 1024 * 1024;
+        private long memoryBudgetBytes;
+        private double freeHeapFraction;
+        private int maxMergeFanIn = 512;
+        private int spillThreads;
+        private int maxPendingRuns;
+        private int mergeThreads = 1;
+        private SegmentFormat segmentFormat = SegmentFormat.RAW;
+        private Durability durability = Durability.ON_CLOSE;
+        private IoBackend ioBackend = IoBackend.MMAP;
+        private int ioBufferBytes = LongBaseStorage.DEFAULT_IO_BUFFER_BYTES;
+        private int limit;
+        private RowCombiner combiner;
+        private SortListener listener;
+        private boolean countComparisons;
+        private String jmxName;
+        private boolean replacementSelection;
+        private boolean offHeap;
+
+        private Builder(File workdir, Collection<H> heads) {
+            this.workdir = workdir;
+            this.heads = Objects.requireNonNull(heads, "heads");
+        }
+
+        /**
+         * @param comparator comparator of line content
+         * @return this
+         */
+        public Builder<H> comparator(Comparator<long[]> comparator) {
+            this.comparator = comparator;
+            return this;
+        }
 
-        in.clear();
-        in.close();
+        /**
+         * sort by signed long columns instead of a comparator, runs are generated with a radix sort
+         * @param columns key column indices in head order, most significant first
+         * @return this
+         */
+        public Builder<H> keyColumns(int... columns) {
+            return keyColumns(columns, RadixSorter.SIGNED);
+        }
+
+        /**
+         * same as {@link #keyColumns(int...)} but the columns compare as unsigned longs
+         * @param columns key column indices in head order, most significant first
+         * @return this
+         */
+        public Builder<H> unsignedKeyColumns(int... columns) {
+            return keyColumns(columns, RadixSorter.UNSIGNED);
+        }
+
+        /**
+         * sort by key columns of any direction and signedness instead of a comparator,
+         * runs are generated with a radix sort on the normalized keys. seek and range follow the direction of the first key
+         * @param spec key columns
+         * @return this
+         */
+        public Builder<H> sortSpec(SortSpec spec) {
+            this.keyColumns = spec.columns();
+            this.keyMasks = spec.masks();
+            return this;
+        }
+
+        private Builder<H> keyColumns(int[] columns, long mask) {
+            this.keyColumns = columns.clone();
+            this.keyMasks = new long[columns.length];
+            Arrays.fill(keyMasks, mask);
+            return this;
+        }
+
+        /**
+         * @param segmentSizeBytes determine how large disk file blocks are created and how much content is read into memory
+         * @return this
+         */
+        public Builder<H> segmentSizeBytes(int segmentSizeBytes) {
+            this.segmentSizeBytes = segmentSizeBytes;
+            return this;
+        }
+
+        /**
+         * size the run buffers by the heap they may use instead of {@link #segmentSizeBytes(int)}.
+         * the buffers, the radix sort arrays and the buffers of async spills together fit in the budget,
+         * the runs are as large as that allows, one run per segment. merges read the mapped segments and
+         * write through the same run buffer, so they need no more heap
+         * @param bytes heap of all run buffers
+         * @return this
+         */
+        public Builder<H> memoryBudget(long bytes) {
+            if (bytes <= 0) {
+                throw new IllegalArgumentException("memory budget should be positive");
+            }
+            this.memoryBudgetBytes = bytes;
+            this.freeHeapFraction = 0;
+            return this;
+        }
+
+        /**
+         * same as {@link #memoryBudget(long)}, with a budget of a part of the heap free when the sorter is built
+         * @param fraction part of {@code maxMemory - used memory} of the runtime, in (0, 1]
+         * @return this
+         */
+        public Builder<H> memoryBudgetOfFreeHeap(double fraction) {
+            if (!(fraction > 0 && fraction <= 1)) {
+                throw new IllegalArgumentException("fraction should be in (0, 1]");
+            }
+            this.freeHeapFraction = fraction;
+            this.memoryBudgetBytes = 0;
+            return this;
+        }
+
+        /**
+         * @return heap budget of the run buffers, 0 if sized by the segment size
+         */
+        private long memoryBudget() {
+            if (freeHeapFraction > 0) {
+                Runtime runtime = Runtime.getRuntime();
+                long free = runtime.maxMemory() - (runtime.totalMemory() - runtime.freeMemory());
+                return Math.max((long) (free * freeHeapFraction), 1L);
+            }
+            return memoryBudgetBytes;
+        }
+
+        /**
+         * max number of runs read at once by a merge, more runs are merged in several passes.
+         * every run read at once keeps one segment mapped
+         * @param maxMergeFanIn at least 2, default 512
+         * @return this
+         */
+        public Builder<H> maxMergeFanIn(int maxMergeFanIn) {
+            this.maxMergeFanIn = maxMergeFanIn;
+            return this;
+        }
+
+        /**
+         * sort and write full run buffers on background threads while appending continues into another buffer.
+         * the comparator should be thread safe, a spill failure is thrown by the next append or by sortAll
+         * @param threads spill threads
+         * @param maxPendingRuns full buffers sorted or waiting before append blocks, every one costs one more run buffer
+         * @return this
+         */
+        public Builder<H> asyncSpill(int threads, int maxPendingRuns) {
+            this.spillThreads = threads;
+            this.maxPendingRuns = maxPendingRuns;
+            return this;
+        }
+
+        /**
+         * split the final merge into key ranges merged on their own thread into their own out segments.
+         * the comparator should be thread safe
+         * @param mergeThreads threads of the final merge, default 1
+         * @return this
+         */
+        public Builder<H> mergeThreads(int mergeThreads) {
+            this.mergeThreads = mergeThreads;
+            return this;
+        }
+
+        /**
+         * format of runs, intermediate runs and the out files.
+         * {@link SegmentFormat#DELTA_VARINT} trades some cpu for less disk traffic, best with sorted or small values.
+         * the format is kept in the idx, so {@link #forEachSorted(File, int, Consumer)} reads any format
+         * @param segmentFormat default {@link SegmentFormat#RAW}
+         * @return this
+         */
+        public Builder<H> segmentFormat(SegmentFormat segmentFormat) {
+            this.segmentFormat = segmentFormat;
+            return this;
+        }
+
+        /**
+         * when the out files are forced to disk, runs and intermediate runs are scratch files and never forced
+         * @param durability default {@link Durability#ON_CLOSE}
+         * @return this
+         */
+        public Builder<H> durability(Durability durability) {
+            this.durability = durability;
+            return this;
+        }
+
+        /**
+         * how runs, intermediate runs and the out files are written and read.
+         * {@link IoBackend#CHANNEL} takes one io buffer per segment written and per run read by a merge,
+         * files written by either backend are read by both
+         * @param ioBackend default {@link IoBackend#MMAP}
+         * @return this
+         */
+        public Builder<H> ioBackend(IoBackend ioBackend) {
+            this.ioBackend = ioBackend;
+            return this;
+        }
+
+        /**
+         * buffer size of {@link IoBackend#CHANNEL}, raised to the largest block of the segment format
+         * @param ioBufferBytes default 256 KB
+         * @return this
+         */
+        public Builder<H> ioBufferBytes(int ioBufferBytes) {
+            if (ioBufferBytes <= 0) {
+                throw new IllegalArgumentException("io buffer bytes should be positive");
+            }
+            this.ioBufferBytes = ioBufferBytes;
+            return this;
+        }
+
+        /**
+         * top-k mode, only the first rows in sort order are kept in memory and written to the out files.
+         * nothing is spilled, memory is about three times the rows of the limit, the segment size is not used
+         * @param limit rows to keep, positive
+         * @return this
+         */
+        public Builder<H> limit(int limit) {
+            if (limit <= 0) {
+                throw new IllegalArgumentException("limit should be positive");
+            }
+            this.limit = limit;
+            return this;
+        }
+
+        /**
+         * collapse rows comparing as equal when runs are written and when they meet in merges,
+         * so the out files hold one row per key
+         * @param combiner combiner, see {@link RowCombiner#sum(int...)} and the other factories
+         * @return this
+         */
+        public Builder<H> combiner(RowCombiner combiner) {
+            this.combiner = combiner;
+            return this;
+        }
+
+        /**
+         * generate runs by batched replacement selection instead of one run per buffer.
+         * runs are about 1.7 buffers on random input, input close to sorted gives a few long runs,
+         * a single run becomes the out files without a merge, so the rows are written once. every spill writes
+         * a quarter of the buffer and merges the new rows into the sorted rows kept. can't be used with a limit or async spill
+         * @return this
+         */
+        public Builder<H> replacementSelection() {
+            this.replacementSelection = true;
+            return this;
+        }
+
+        /**
+         * keep the run buffers in direct memory instead of the heap. rows are sorted by moving them
+         * and a sorted run is copied to its segment in bulk, the heap stays flat whatever the buffer size.
+         * a buffer takes two times its rows, bounded by {@code -XX:MaxDirectMemorySize}
+         * @return this
+         */
+        public Builder<H> offHeapRunBuffers() {
+            this.offHeap = true;
+            return this;
+        }
+
+        /**
+         * @param listener callbacks of runs, merges and the end of the sort
+         * @return this
+         */
+        public Builder<H> listener(SortListener listener) {
+            this.listener = listener;
+            return this;
+        }
+
+        /**
+         * count the calls of the comparator in {@link SortMetrics#getComparisons()}.
+         * costs one counter increment per comparison, the radix sort of key columns does no comparison
+         * @return this
+         */
+        public Builder<H> countComparisons() {
+            this.countComparisons = true;
+            return this;
+        }
+
+        /**
+         * register the counters as a {@link SortMetricsMXBean} in the platform mbean server until the sorter is closed
+         * @param name unique name of the sorter, the {@code name} key of the object name
+         * @return this
+         */
+        public Builder<H> jmx(String name) {
+            this.jmxName = Objects.requireNonNull(name, "name");
+            return this;
+        }
+
+        public FastLongBaseExternalSort<H> build() {
+            return new FastLongBaseExternalSort<>(this);
+        }
     }
 
 }
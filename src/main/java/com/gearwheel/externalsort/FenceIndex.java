@@ -0,0 +1,213 @@
+package com.gearwheel.externalsort;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * Sparse fence pointers of a sorted storage, the {@code .fence} file next to its idx
+ * <p>
+ *     one fence for every {@link #RAW_FENCE_ROWS} raw rows or every encoded block: the key of its first row,
+ *     its segment and its byte offset. keys are of the most significant key column, kept normalized by the column mask
+ *     so they order as unsigned longs.
+ *     a lookup is a binary search over the fences, then a read from the fence on
+ * </p>
+ *
+ * @author gear-wheel
+ */
+final class FenceIndex {
+
+    static final int RAW_FENCE_ROWS = 4096;
+
+    private static final String FILENAME_FENCE = ".fence";
+    private static final int MAGIC = 0x45534646;
+    private static final int VERSION = 1;
+    private static final int HEADER_BYTES = 4 * Integer.BYTES + 2 * Long.BYTES;
+    private static final int ENTRY_BYTES = Long.BYTES + 2 * Integer.BYTES;
+
+    final int keyColumn;
+    final long mask;
+    /** normalized first keys */
+    private final long[] keys;
+    private final int[] segments;
+    private final int[] offsets;
+
+    private FenceIndex(int keyColumn, long mask, long[] keys, int[] segments, int[] offsets) {
+        this.keyColumn = keyColumn;
+        this.mask = mask;
+        this.keys = keys;
+        this.segments = segments;
+        this.offsets = offsets;
+    }
+
+    static File file(File directory, String prefix) {
+        return new File(directory, prefix + FILENAME_FENCE);
+    }
+
+    /**
+     * walk the committed segments of a sorted storage and write its fence file
+     * @param storage sorted storage
+     * @param keyColumn most significant key column
+     * @param mask mask of the key column
+     * @param force force the fence file
+     * @return fences
+     */
+    static FenceIndex write(LongBaseStorage storage, int keyColumn, long mask, boolean force) {
+        final int rowBytes = storage.columns * Long.BYTES;
+        final int keyOffset = keyColumn * Long.BYTES;
+        long[] keys = new long[64];
+        int[] segments = new int[64];
+        int[] offsets = new int[64];
+        int size = 0;
+        // a raw row, or a block header and its first row of varints at most 10 bytes each
+        final ByteBuffer first = ByteBuffer.allocate(storage.format == SegmentFormat.RAW ? rowBytes
+                : RowBlockCodec.HEADER_BYTES + storage.columns * 10);
+
+        for (int s = 0; s < storage.index.size(); s++) {
+            final int limit = (int) storage.index.position(s);
+            Segment segment = storage.segments.get(s);
+            boolean release = !segment.hold();
+            try {
+                int offset = 0;
+                while (offset < limit) {
+                    if (size == keys.length) {
+                        keys = Arrays.copyOf(keys, size * 2);
+                        segments = Arrays.copyOf(segments, size * 2);
+                        offsets = Arrays.copyOf(offsets, size * 2);
+                    }
+                    segments[size] = s;
+                    offsets[size] = offset;
+                    first.clear();
+                    segment.readAt(offset, first);
+                    first.flip();
+                    if (storage.format == SegmentFormat.RAW) {
+                        keys[size] = first.getLong(keyOffset) ^ mask;
+                        offset += (int) Math.min((long) RAW_FENCE_ROWS * rowBytes, limit - offset);
+                    }
+                    else {
+                        keys[size] = RowBlockCodec.lineReader(storage.format, storage.columns, 0L, 1L).apply(first)[keyColumn] ^ mask;
+                        offset += RowBlockCodec.HEADER_BYTES + first.getInt(Integer.BYTES);
+                    }
+                    size++;
+                }
+            }
+            finally {
+                segment.letGo(release);
+            }
+        }
+
+        File file = file(storage.directory, storage.prefix);
+        try (FileChannel channel = FileChannel.open(file.toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            ByteBuffer out = ByteBuffer.allocate(64 * 1024);
+            out.putInt(MAGIC).putInt(VERSION).putInt(keyColumn).putInt(storage.columns).putLong(mask).putLong(size);
+            for (int i = 0; i < size; i++) {
+                if (out.remaining() < ENTRY_BYTES) {
+                    drain(out, channel);
+                }
+                out.putLong(keys[i]).putInt(segments[i]).putInt(offsets[i]);
+            }
+            drain(out, channel);
+            if (force) {
+                channel.force(false);
+            }
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return new FenceIndex(keyColumn, mask, Arrays.copyOf(keys, size), Arrays.copyOf(segments, size), Arrays.copyOf(offsets, size));
+    }
+
+    private static void drain(ByteBuffer out, FileChannel channel) throws IOException {
+        out.flip();
+        while (out.hasRemaining()) {
+            channel.write(out);
+        }
+        out.clear();
+    }
+
+    /**
+     * @param directory directory of the storage
+     * @param prefix prefix of the storage
+     * @param columns columns per row
+     * @return fences
+     */
+    static FenceIndex read(File directory, String prefix, int columns) {
+        File file = file(directory, prefix);
+        if (!file.isFile()) {
+            throw new IllegalStateException("no fence index " + file + ", it is only written by sorts on key columns");
+        }
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            ByteBuffer bb = ByteBuffer.allocate((int) channel.size());
+            while (bb.hasRemaining() && channel.read(bb) >= 0) {
+                // read all
+            }
+            bb.flip();
+            if (bb.remaining() < HEADER_BYTES || bb.getInt() != MAGIC || bb.getInt() != VERSION) {
+                throw new IllegalStateException("fence index " + file + " is broken or of an unknown version");
+            }
+            int keyColumn = bb.getInt();
+            int fileColumns = bb.getInt();
+            if (fileColumns != columns) {
+                throw new IllegalArgumentException("fence index " + file + " was written with " + fileColumns + " columns, not " + columns);
+            }
+            long mask = bb.getLong();
+            int size = (int) bb.getLong();
+            long[] keys = new long[size];
+            int[] segments = new int[size];
+            int[] offsets = new int[size];
+            for (int i = 0; i < size; i++) {
+                keys[i] = bb.getLong();
+                segments[i] = bb.getInt();
+                offsets[i] = bb.getInt();
+            }
+            return new FenceIndex(keyColumn, mask, keys, segments, offsets);
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    static void delete(File directory, String prefix) {
+        File file = file(directory, prefix);
+        if (file.exists()) {
+            file.delete();
+        }
+    }
+
+    /**
+     * cursor over the rows whose key is in {@code [from, to]}
+     * @param storage the storage of the fences
+     * @param from first key
+     * @param to last key
+     * @param ownStorage close the storage with the cursor
+     * @return cursor
+     */
+    SortedRowCursor range(LongBaseStorage storage, long from, long to, boolean ownStorage) {
+        final long lo = from ^ mask;
+        // equal keys may start before the first fence of their key, so start at the last fence below
+        int fence = -1;
+        int low = 0;
+        int high = keys.length - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            if (Long.compareUnsigned(keys[mid], lo) < 0) {
+                fence = mid;
+                low = mid + 1;
+            }
+            else {
+                high = mid - 1;
+            }
+        }
+        if (fence < 0) {
+            fence = 0;
+        }
+        int segment = keys.length == 0 ? 0 : segments[fence];
+        int offset = keys.length == 0 ? 0 : offsets[fence];
+        return new SortedRowCursor(storage, storage.columns, ownStorage, segment, offset, keyColumn, mask, from, to);
+    }
+}
@@ -0,0 +1,21 @@
+package com.gearwheel.externalsort;
+
+/**
+ * How segment files are written and read
+ *
+ * @author gear-wheel
+ */
+public enum IoBackend {
+
+    /**
+     * every segment is preallocated and mapped, rows are put into and read from the mapping.
+     * finished segments are unmapped on release
+     */
+    MMAP,
+
+    /**
+     * rows are staged in reusable direct buffers, written sequentially and read back by positional reads of a
+     * {@link java.nio.channels.FileChannel}. nothing is preallocated or mapped, page cache use is bounded by the buffers
+     */
+    CHANNEL
+}
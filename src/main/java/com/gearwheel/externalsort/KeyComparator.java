@@ -0,0 +1,63 @@
+package com.gearwheel.externalsort;
+
+import java.util.Comparator;
+
+/**
+ * Comparator of rows on normalized key columns, the only comparator class of key column sorts
+ * <p>
+ *     one class for every {@link SortSpec} keeps the comparison call sites of the sorts and merges monomorphic,
+ *     the first key is compared without the loop. {@link #prefix(long[])} is the normalized first key,
+ *     equal prefixes leave the order to the other keys
+ * </p>
+ *
+ * @author gear-wheel
+ */
+final class KeyComparator implements Comparator<long[]> {
+
+    private final int first;
+    private final long firstMask;
+    private final int[] columns;
+    private final long[] masks;
+
+    /**
+     * @param columns key column indices, most significant first
+     * @param masks xor mask per key column
+     */
+    KeyComparator(int[] columns, long[] masks) {
+        this.first = columns[0];
+        this.firstMask = masks[0];
+        this.columns = columns.clone();
+        this.masks = masks.clone();
+    }
+
+    /**
+     * @param row row
+     * @return the first key normalized, orders as unsigned long
+     */
+    long prefix(long[] row) {
+        return row[first] ^ firstMask;
+    }
+
+    @Override
+    public int compare(long[] x, long[] y) {
+        int cmp = Long.compareUnsigned(x[first] ^ firstMask, y[first] ^ firstMask);
+        if (cmp != 0) {
+            return cmp;
+        }
+        return compareRest(x, y);
+    }
+
+    /**
+     * compare the keys after the first one
+     */
+    int compareRest(long[] x, long[] y) {
+        for (int i = 1; i < columns.length; i++) {
+            int c = columns[i];
+            int cmp = Long.compareUnsigned(x[c] ^ masks[i], y[c] ^ masks[i]);
+            if (cmp != 0) {
+                return cmp;
+            }
+        }
+        return 0;
+    }
+}
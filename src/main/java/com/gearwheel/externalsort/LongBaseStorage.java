@@ -3,19 +3,20 @@ package com.gearwheel.externalsort;
 
 import java.io.File;
 import java.io.IOException;
-import java.io.RandomAccessFile;
 import java.io.UncheckedIOException;
 import java.nio.ByteBuffer;
-import java.nio.MappedByteBuffer;
-import java.nio.channels.FileChannel;
-import java.nio.file.Files;
-import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
-import java.util.function.Consumer;
+import java.util.function.Function;
 
 /**
+ * Rows in a list of segment files, and the idx of their fill positions
+ * <p>
+ *     every segment is one file of at most 2 GB, sizes and row counts of the storage are long.
+ *     segments are mapped or written through buffers depending on the {@link IoBackend}.
+ *     a sealed segment is truncated to its fill position, so finished files take no more space than their content
+ * </p>
  *
  * @author gear-wheel
  * @date 2024-07-15 10:12
@@ -26,14 +27,56 @@ class LongBaseStorage implements AutoCloseable {
     final String prefix;
     final int segmentSizeBytes;
     final List<Segment> segments = new ArrayList<>();
-    final Segment indexSegment;
-    private Segment currentSegment;
+    final SegmentIndex index;
+    final SegmentFormat format;
+    final int columns;
+    private final int rowBytes;
+    private final IoBackend backend;
+    /** buffer size of {@link IoBackend#CHANNEL} segments */
+    private final int ioBufferBytes;
+    /** pending block, null if raw */
+    private final RowBlockCodec.Encoder encoder;
+    private Durability durability = Durability.NONE;
+    /** loaded from disk, only read */
+    private final boolean loaded;
+    private boolean closed;
+    /** a sealed segment was forced, its idx entry should follow */
+    private boolean idxForcePending;
+
+    /** largest window one segment can be mapped as */
+    static final int MAX_SEGMENT_BYTES = Integer.MAX_VALUE;
+    /** default buffer size of {@link IoBackend#CHANNEL} segments */
+    static final int DEFAULT_IO_BUFFER_BYTES = 256 * 1024;
 
     private static final String FILENAME_IDX = ".idx";
     private static final String FILENAME_FLAG_DATA = "-";
 
 
-    public LongBaseStorage(File directory, String prefix, int segmentSizeBytes, boolean allowLoad) {
+    /**
+     * @param directory directory of the files
+     * @param prefix prefix of the files
+     * @param segmentSizeBytes default segment size, the size of the first segment is used if loaded
+     * @param allowLoad load committed segments instead of deleting them
+     * @param format format of new storages, a loaded storage keeps the format written in its idx
+     * @param columns columns per row
+     */
+    public LongBaseStorage(File directory, String prefix, int segmentSizeBytes, boolean allowLoad,
+                           SegmentFormat format, int columns) {
+        this(directory, prefix, segmentSizeBytes, allowLoad, format, columns, IoBackend.MMAP, DEFAULT_IO_BUFFER_BYTES);
+    }
+
+    /**
+     * @param directory directory of the files
+     * @param prefix prefix of the files
+     * @param segmentSizeBytes default segment size, the size of the first segment is used if loaded
+     * @param allowLoad load committed segments instead of deleting them
+     * @param format format of new storages, a loaded storage keeps the format written in its idx
+     * @param columns columns per row
+     * @param backend how segments are written and read
+     * @param ioBufferBytes buffer size of {@link IoBackend#CHANNEL} segments, raised to the largest block
+     */
+    LongBaseStorage(File directory, String prefix, int segmentSizeBytes, boolean allowLoad,
+                    SegmentFormat format, int columns, IoBackend backend, int ioBufferBytes) {
         if (directory == null || !directory.isDirectory()) {
             throw new IllegalArgumentException(" directory is illegal " + directory);
         }
@@ -52,127 +95,322 @@ class LongBaseStorage implements AutoCloseable {
 
         this.directory = directory;
         this.prefix = prefix;
-        this.indexSegment = map(idxFile, 0, Integer.BYTES * 1024 * 1024);
-
-
-        List<Integer> idxList;
-
+        this.backend = backend;
+        this.columns = columns;
+        this.rowBytes = columns * Long.BYTES;
         boolean canLoadOld = allowLoad
                 && idxFile.exists()
                 && files != null
                 && Arrays.stream(files)
                 .anyMatch(x -> x.getName().contains(prefix + FILENAME_FLAG_DATA));
-        if (canLoadOld && !(idxList = readIdxList()).isEmpty()) {
+        this.index = new SegmentIndex(idxFile);
 
-            this.segmentSizeBytes = (int) new File(directory, prefix + FILENAME_FLAG_DATA + 0).length();
-
-            for (int i = 0; i < idxList.size(); i++) {
-                createSegment(i, idxList.get(i));
+        if (canLoadOld && index.size() > 0) {
+            if (index.columns() != 0 && index.columns() != columns) {
+                index.delete();
+                throw new IllegalArgumentException("storage " + prefix + " was written with " + index.columns()
+                        + " columns, not " + columns);
             }
-
+            this.format = index.format();
+            this.segmentSizeBytes = (int) segmentFile(0).length();
+            this.ioBufferBytes = ioBufferBytes(this.format, ioBufferBytes);
+
+            // segments may differ in size, the last one stays mapped
+            for (int i = 0; i < index.size(); i++) {
+                if (i > 0) {
+                    segments.get(i - 1).release();
+                }
+                createSegment(i, index.position(i), (int) segmentFile(i).length());
+            }
+            this.loaded = true;
         }
         else {
             // init params
+            this.format = format;
             this.segmentSizeBytes = segmentSizeBytes;
+            this.ioBufferBytes = ioBufferBytes(format, ioBufferBytes);
+            this.loaded = false;
         }
+        this.encoder = this.format == SegmentFormat.RAW ? null : new RowBlockCodec.Encoder(columns);
 
 
         if (segments.isEmpty()) {
-            currentSegment = createSegment(0, 0);
-        }
-        else {
-            currentSegment = segments.get(segments.size() - 1);
+            createSegment(0, 0, this.segmentSizeBytes);
         }
     }
 
 
-    private Segment createSegment(long idx, long pos) {
-        File file = new File(directory, prefix + FILENAME_FLAG_DATA + idx);
-        Segment segment = map(file, pos, segmentSizeBytes);
+    private File segmentFile(long idx) {
+        return new File(directory, prefix + FILENAME_FLAG_DATA + idx);
+    }
+
+    /**
+     * @return buffer size holding at least one row or block
+     */
+    private int ioBufferBytes(SegmentFormat format, int ioBufferBytes) {
+        long largest = format == SegmentFormat.RAW ? rowBytes
+                : RowBlockCodec.maxEncodedBytes(format, RowBlockCodec.BLOCK_ROWS, columns);
+        return (int) Math.max(ioBufferBytes, largest);
+    }
+
+    private Segment createSegment(long idx, long pos, int sizeBytes) {
+        Segment segment = backend == IoBackend.MMAP
+                ? MappedSegment.map(segmentFile(idx), (int) pos, sizeBytes)
+                : ChannelSegment.open(segmentFile(idx), (int) pos, sizeBytes,
+                        format == SegmentFormat.RAW ? rowBytes : 0, ioBufferBytes);
         segments.add(segment);
         return segment;
     }
 
-    private static Segment map(File file, long pos, int segmentSizeBytes) {
-        try {
-            checkFile(file, segmentSizeBytes);
-            try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
-                raf.setLength(segmentSizeBytes);
+    /**
+     * @return a new line reader of the storage format, every reader reuses its own array
+     */
+    Function<ByteBuffer, long[]> lineReader() {
+        return RowBlockCodec.lineReader(format, columns);
+    }
+
+    /**
+     * append a row to the last segment, a new segment is created when it is full
+     * @param src source
+     * @param offset offset of the row in source
+     */
+    public void putRow(long[] src, int offset) {
+        if (encoder != null) {
+            if (encoder.add(src, offset)) {
+                writeBlock();
+            }
+            return;
+        }
+        ByteBuffer bb = lastSegment().writable(rowBytes);
+        if (bb == null) {
+            createNewSegment();
+            bb = lastSegment().writable(rowBytes);
+        }
+        for (int c = 0; c < columns; c++) {
+            bb.putLong(src[offset + c]);
+        }
+    }
+
+    /**
+     * append rows stored back to back as big endian longs, raw rows are copied in bulk
+     * @param rows whole rows between position and limit, the position is moved to the limit
+     */
+    void putRows(ByteBuffer rows) {
+        if (encoder != null) {
+            final long[] row = new long[columns];
+            while (rows.hasRemaining()) {
+                for (int c = 0; c < columns; c++) {
+                    row[c] = rows.getLong();
+                }
+                putRow(row, 0);
+            }
+            return;
+        }
+        final int end = rows.limit();
+        while (rows.position() < end) {
+            ByteBuffer bb = lastSegment().writable(rowBytes);
+            if (bb == null) {
+                createNewSegment();
+                continue;
+            }
+            int bytes = Math.min(Math.min(lastSegment().room(), bb.remaining()), end - rows.position());
+            rows.limit(rows.position() + bytes / rowBytes * rowBytes);
+            bb.put(rows);
+            rows.limit(end);
+        }
+    }
+
+    private void writeBlock() {
+        int bytes = encoder.encode();
+        ByteBuffer bb = lastSegment().writable(bytes);
+        if (bb == null) {
+            if (lastSegment().position() == 0) {
+                // too small to hold one block, don't leave an empty file behind
+                dropLastSegment();
             }
-            FileChannel channel = (FileChannel) Files
-                    .newByteChannel(
-                            file.toPath(),
-                            StandardOpenOption.CREATE,
-                            StandardOpenOption.READ,
-                            StandardOpenOption.WRITE);
-            // map the whole file
-            MappedByteBuffer bb = channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentSizeBytes);
-            // setPos
-            bb.position((int) pos);
-            return new Segment(file, channel, bb);
-        } catch (IOException e) {
+            createNewSegment(Math.max(segmentSizeBytes, bytes));
+            bb = lastSegment().writable(bytes);
+        }
+        encoder.writeTo(bb);
+    }
+
+    private Segment lastSegment() {
+        return segments.get(segments.size() - 1);
+    }
+
+    private void dropLastSegment() {
+        Segment last = segments.remove(segments.size() - 1);
+        try {
+            last.close();
+        }
+        catch (IOException e) {
             throw new UncheckedIOException(e);
         }
+        last.file.delete();
     }
 
+    /**
+     * the finished segment is sealed, so only the segment being written stays mapped
+     */
+    public void createNewSegment() {
+        createNewSegment(segmentSizeBytes);
+    }
 
-    private static void checkFile(File file, int segmentSizeBytes) {
-        if (file.exists() && file.length() != segmentSizeBytes) {
-            throw new IllegalStateException("segment file " + file + " should be of size " + segmentSizeBytes
-                    + " but was of size " + file.length());
+    /**
+     * create a segment of another size than the storage default
+     * @param sizeBytes size of the new segment file
+     */
+    public void createNewSegment(int sizeBytes) {
+        if (!segments.isEmpty()) {
+            Segment last = lastSegment();
+            if (durability == Durability.PER_SEGMENT) {
+                // sealed, forced while still mapped
+                last.force();
+                idxForcePending = true;
+            }
+            last.seal();
         }
+        createSegment(segments.size(), 0, sizeBytes);
     }
 
-    @SuppressWarnings("all")
-    public void forEach(Consumer<Long> action) {
-        final List<Integer> idxList = readIdxList();
-        final List<Segment> segmentList = segments;
-        int pos;
-        Segment segment;
-        for (int i = 0; i < idxList.size(); i++) {
-            pos = idxList.get(i);
-            segment = segmentList.get(i);
+    /**
+     * create a segment after the last one, which is left as is, for writers filling several segments at once
+     * @param sizeBytes size of the new segment file
+     */
+    void appendSegment(int sizeBytes) {
+        createSegment(segments.size(), 0, sizeBytes);
+    }
 
-            ByteBuffer bb = segment.bb.asReadOnlyBuffer();
-            bb.flip();
-            while (bb.position() < pos) {
-                action.accept(bb.getLong());
+    /**
+     * delete the segments nothing was written to and rename the following ones, so the idx has no gap.
+     * all segments should be released
+     */
+    void removeEmptySegments() {
+        List<Segment> kept = new ArrayList<>(segments.size());
+        for (Segment segment : segments) {
+            if (segment.position() == 0) {
+                segment.file.delete();
+                continue;
             }
+            File file = segmentFile(kept.size());
+            if (!segment.file.equals(file)) {
+                segment = segment.renameTo(file);
+            }
+            kept.add(segment);
         }
+        segments.clear();
+        segments.addAll(kept);
     }
 
-    public void putLong(long l) {
-        if (currentSegment.bb.position() + Long.BYTES > segmentSizeBytes) {
-            createNewSegment();
-            currentSegment = segments.get(segments.size() - 1);
+    /**
+     * move segments of another storage in the same directory into this empty storage, nothing is copied.
+     * the segments are sealed and renamed, the source forgets them
+     * @param source storage of the segments
+     * @param taken segments of the source in order
+     */
+    void adopt(LongBaseStorage source, List<Segment> taken) {
+        if (getWrittenSize() != 0) {
+            throw new IllegalStateException("storage " + prefix + " should be empty to adopt segments");
         }
-        currentSegment.bb.putLong(l);
+        closeSegments();
+        deleteSegmentFiles();
+        segments.clear();
+        for (Segment segment : taken) {
+            segment.seal();
+            segments.add(segment.renameTo(segmentFile(segments.size())));
+        }
+        source.segments.removeAll(taken);
     }
 
-    public void putLongUncheck(long l) {
-        segments.get(segments.size() - 1).bb.putLong(l);
+    /**
+     * @return bytes written into all segments
+     */
+    public long getWrittenSize() {
+        long size = 0L;
+        for (Segment segment : segments) {
+            size += segment.position();
+        }
+        return size;
     }
 
-    public void createNewSegment() {
-        createSegment(segments.size(), 0);
+    /**
+     * @param durability when segments and the idx are forced, default {@link Durability#NONE}
+     */
+    void durability(Durability durability) {
+        this.durability = durability;
     }
 
+    /**
+     * write the pending block and the changed idx entries.
+     * rows appended after a commit start a new block, what is forced depends on the {@link Durability}
+     */
     public void commit() {
-        List<Integer> idxList = new ArrayList<>();
-        for (Segment segment : segments) {
-            segment.bb.force();
-            idxList.add(segment.bb.position());
+        if (encoder != null && !encoder.isEmpty()) {
+            writeBlock();
+        }
+        if (!segments.isEmpty()) {
+            lastSegment().flush();
+        }
+        if (durability == Durability.PER_SEGMENT) {
+            // sealed segments not forced on creation of the next one, like segments written by the parallel merge
+            for (int i = 0; i < segments.size() - 1; i++) {
+                Segment segment = segments.get(i);
+                if (segment.isDirty()) {
+                    segment.force();
+                    idxForcePending = true;
+                }
+            }
         }
 
-        commitIdx(idxList);
+        index.write(format, columns, segments);
+        if (idxForcePending) {
+            index.force();
+            idxForcePending = false;
+        }
     }
 
-
+    /**
+     * force every dirty segment and the idx
+     */
+    private void forceAll() {
+        commit();
+        for (Segment segment : segments) {
+            segment.force();
+        }
+        index.force();
+    }
 
     @Override
     public void close() throws Exception {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        // a cleared storage has nothing to force
+        if (durability != Durability.NONE && !segments.isEmpty()) {
+            forceAll();
+        }
+        if (!loaded) {
+            // the last segment is preallocated too
+            for (Segment segment : segments) {
+                segment.seal();
+            }
+        }
         closeSegments();
-        indexSegment.close();
+        index.close();
+    }
+
+    /**
+     * delete every segment and start over with one empty segment, the storage can be written again
+     */
+    void reset() {
+        if (!segments.isEmpty()) {
+            closeSegments();
+            deleteSegmentFiles();
+            segments.clear();
+        }
+        index.truncate();
+        createSegment(0, 0, segmentSizeBytes);
     }
 
     public void clear() {
@@ -183,11 +421,7 @@ class LongBaseStorage implements AutoCloseable {
             segments.clear();
         }
         /* index file  */
-        try {
-            indexSegment.close();
-            indexSegment.file.delete();
-        }
-        catch (Exception ignore) { }
+        index.delete();
 
     }
 
@@ -207,30 +441,24 @@ class LongBaseStorage implements AutoCloseable {
     }
 
 
-    private List<Integer> readIdxList() {
-        ByteBuffer rbb = indexSegment.bb.asReadOnlyBuffer();
-        rbb.position(0);
-        List<Integer> idxList = new ArrayList<>();
-        int idx;
-        while ((idx = rbb.getInt()) != 0) {
-            idxList.add(idx);
-        }
-
-        return idxList;
+    /**
+     * @return committed fill position of every segment
+     */
+    List<Long> readIdxList() {
+        return index.positions();
     }
 
+    /**
+     * @return committed bytes of all segments
+     */
     public long getCurrentSize() {
-        return readIdxList().stream().mapToLong(Integer::longValue).reduce(Long::sum).orElse(0L);
-    }
-
-    private void commitIdx(List<Integer> idxList) {
-        MappedByteBuffer mappedByteBuffer = indexSegment.bb;
-        mappedByteBuffer.clear();
-        idxList.forEach(mappedByteBuffer::putInt);
-        mappedByteBuffer.force();
+        long size = 0L;
+        for (int i = 0; i < index.size(); i++) {
+            size += index.position(i);
+        }
+        return size;
     }
 
-
     private static void del(File file) {
         if (file.exists()) {
             file.delete();
@@ -0,0 +1,307 @@
+package com.gearwheel.externalsort;
+
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.function.Function;
+
+/**
+ * Heap run buffer, rows are stored back to back in one flat {@code long[]}
+ * <p>
+ *     sorting only moves an int permutation, so appending and sorting a run allocates nothing per row
+ * </p>
+ *
+ * @author gear-wheel
+ */
+final class LongRowBuffer extends RowBuffer {
+
+    private long[] data;
+    private int[] order;
+    private int[] orderAux;
+    private long[] keys;
+    private long[] keysAux;
+
+    /** target of {@link #dropSorted(int, int)}, swapped with data */
+    private long[] spare;
+
+    LongRowBuffer(int columns, int capacity) {
+        super(columns, capacity);
+        this.data = new long[Math.min(capacity, INITIAL_ROWS) * columns];
+    }
+
+    /**
+     * Estimated heap size of a full buffer
+     * @param columns columns per row
+     * @param rows capacity
+     * @return bytes
+     */
+    static long memorySize(int columns, int rows) {
+        // data + order + merge aux, plus three array headers
+        return rows * (8L * columns + 4 + 4) + 3 * 16;
+    }
+
+    /**
+     * reader of one line for {@link Segment.BufferedSegmentReader}, every reader reuses its own array
+     * @param columns columns per row
+     * @return line reader
+     */
+    static Function<ByteBuffer, long[]> lineReader(int columns) {
+        final long[] longs = new long[columns];
+        return byteBuffer -> {
+            for (int i = 0; i < longs.length; i++) {
+                longs[i] = byteBuffer.getLong();
+            }
+            return longs;
+        };
+    }
+
+    @Override
+    int nextRow() {
+        if ((size + 1) * columns > data.length) {
+            grow();
+        }
+        sorted = false;
+        return columns * size++;
+    }
+
+    @Override
+    int nextRows(int rows) {
+        while ((size + rows) * columns > data.length) {
+            grow();
+        }
+        sorted = false;
+        int offset = columns * size;
+        size += rows;
+        return offset;
+    }
+
+    @Override
+    void put(int index, long value) {
+        data[index] = value;
+    }
+
+    @Override
+    void put(int index, LongBuffer src, int length) {
+        src.get(data, index, length);
+    }
+
+    @Override
+    void add(long[] row) {
+        int offset = nextRow();
+        System.arraycopy(row, 0, data, offset, columns);
+    }
+
+    @Override
+    void dropSorted(int from, int to) {
+        checkSorted();
+        final int cols = columns;
+        if (spare == null || spare.length < data.length) {
+            spare = new long[data.length];
+        }
+        int kept = 0;
+        for (int i = 0; i < size; i++) {
+            if (i == from && to > from) {
+                i = to - 1;
+                continue;
+            }
+            System.arraycopy(data, order[i] * cols, spare, kept++ * cols, cols);
+        }
+        long[] retained = spare;
+        spare = data;
+        data = retained;
+        size = kept;
+        sorted = false;
+    }
+
+    @Override
+    int rowOf(int rank) {
+        return order[rank];
+    }
+
+    /**
+     * the first row of every group takes the result, dropped rows stay in data, they are not in the order anymore
+     */
+    @Override
+    void setCombined(int rank, int row, long[] acc) {
+        System.arraycopy(acc, 0, data, row * columns, columns);
+        order[rank] = row;
+    }
+
+    private void grow() {
+        int rows = data.length / columns;
+        int newRows = (int) Math.min(capacity, Math.max(rows + 1L, rows + (rows >> 1)));
+        data = Arrays.copyOf(data, newRows * columns);
+    }
+
+    /**
+     * only the permutation is moved
+     */
+    @Override
+    void sort(Comparator<long[]> comparator) {
+        ensureOrderCapacity();
+        for (int i = 0; i < size; i++) {
+            order[i] = i;
+            orderAux[i] = i;
+        }
+        mergeSort(orderAux, order, 0, size, comparator);
+        sorted = true;
+    }
+
+    @Override
+    void sort(RadixSorter radixSorter) {
+        ensureOrderCapacity();
+        if (keys == null || keys.length < size) {
+            keys = new long[order.length];
+            keysAux = new long[order.length];
+        }
+        radixSorter.sort(data, columns, size, order, orderAux, keys, keysAux);
+        sorted = true;
+    }
+
+    @Override
+    void sortAfter(int sortedRows, RadixSorter radixSorter, Comparator<long[]> comparator) {
+        ensureOrderCapacity();
+        final int from = Math.min(sortedRows, size);
+        final int tail = size - from;
+        if (radixSorter != null) {
+            if (keys == null || keys.length < size) {
+                keys = new long[order.length];
+                keysAux = new long[order.length];
+            }
+            radixSorter.sort(data, columns, from, tail, order, orderAux, keys, keysAux);
+        }
+        else {
+            for (int i = 0; i < tail; i++) {
+                order[i] = from + i;
+                orderAux[i] = from + i;
+            }
+            mergeSort(orderAux, order, 0, tail, comparator);
+        }
+
+        // merge the sorted rows in front with the sorted tail, the front wins ties
+        System.arraycopy(order, 0, orderAux, 0, tail);
+        int p = 0;
+        int q = 0;
+        int k = 0;
+        if (p < from && q < tail) {
+            load(p, left);
+            load(orderAux[q], right);
+        }
+        while (p < from && q < tail) {
+            if (comparator.compare(left, right) <= 0) {
+                order[k++] = p++;
+                if (p < from) {
+                    load(p, left);
+                }
+            }
+            else {
+                order[k++] = orderAux[q++];
+                if (q < tail) {
+                    load(orderAux[q], right);
+                }
+            }
+        }
+        while (p < from) {
+            order[k++] = p++;
+        }
+        while (q < tail) {
+            order[k++] = orderAux[q++];
+        }
+        sorted = true;
+    }
+
+    private void ensureOrderCapacity() {
+        if (order == null || order.length < size) {
+            order = new int[data.length / columns];
+            orderAux = new int[order.length];
+        }
+    }
+
+    /**
+     * sort {@code dst[lo, hi)}, {@code src} holds the same content and is used as scratch
+     */
+    private void mergeSort(int[] src, int[] dst, int lo, int hi, Comparator<long[]> comparator) {
+        int length = hi - lo;
+        if (length < INSERTION_SORT_THRESHOLD) {
+            insertionSort(dst, lo, hi, comparator);
+            return;
+        }
+
+        int mid = (lo + hi) >>> 1;
+        mergeSort(dst, src, lo, mid, comparator);
+        mergeSort(dst, src, mid, hi, comparator);
+
+        // already in order, just copy
+        load(src[mid - 1], left);
+        load(src[mid], right);
+        if (comparator.compare(left, right) <= 0) {
+            System.arraycopy(src, lo, dst, lo, length);
+            return;
+        }
+
+        int p = lo;
+        int q = mid;
+        load(src[p], left);
+        for (int i = lo; i < hi; i++) {
+            if (q >= hi || p < mid && comparator.compare(left, right) <= 0) {
+                dst[i] = src[p++];
+                if (p < mid) {
+                    load(src[p], left);
+                }
+            }
+            else {
+                dst[i] = src[q++];
+                if (q < hi) {
+                    load(src[q], right);
+                }
+            }
+        }
+    }
+
+    private void insertionSort(int[] a, int lo, int hi, Comparator<long[]> comparator) {
+        for (int i = lo + 1; i < hi; i++) {
+            int row = a[i];
+            load(row, left);
+            int j = i - 1;
+            while (j >= lo) {
+                load(a[j], right);
+                if (comparator.compare(right, left) <= 0) {
+                    break;
+                }
+                a[j + 1] = a[j];
+                j--;
+            }
+            a[j + 1] = row;
+        }
+    }
+
+    @Override
+    void load(int row, long[] dst) {
+        System.arraycopy(data, row * columns, dst, 0, columns);
+    }
+
+    @Override
+    void store(int row, long[] src) {
+        System.arraycopy(src, 0, data, row * columns, columns);
+    }
+
+    @Override
+    void writeTo(LongBaseStorage storage) {
+        final long[] rows = data;
+        final int cols = columns;
+        for (int i = 0; i < size; i++) {
+            storage.putRow(rows, (sorted ? order[i] : i) * cols);
+        }
+    }
+
+    @Override
+    void writeSortedTo(LongBaseStorage storage, int from, int to) {
+        checkSorted();
+        final long[] rows = data;
+        final int cols = columns;
+        for (int i = from; i < to; i++) {
+            storage.putRow(rows, order[i] * cols);
+        }
+    }
+}
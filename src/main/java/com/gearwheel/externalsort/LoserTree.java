@@ -0,0 +1,141 @@
+package com.gearwheel.externalsort;
+
+import java.util.Comparator;
+import java.util.List;
+import java.util.function.ToLongFunction;
+
+/**
+ * Tournament (loser) tree for the k-way merge of sorted readers
+ * <p>
+ *     each internal node keeps the loser of its match, the overall winner is kept at node 0.
+ *     taking the winner replays one leaf-to-root path, log2(k) comparisons and no re-insertion.
+ *     exhausted readers lose against everything, ties are won by the lower reader index.
+ *     with a prefix, the normalized first key of every head is kept next to the tree and compared first,
+ *     the comparator only decides between equal prefixes
+ * </p>
+ *
+ * @author gear-wheel
+ */
+final class LoserTree<T> {
+
+    /** virtual player that beats everything, only used while building the tree */
+    private static final int NONE = -1;
+
+    private final Segment.BufferedSegmentReader<?>[] readers;
+    /** current element of each reader, null once exhausted */
+    private final Object[] heads;
+    private final Comparator<? super T> comparator;
+    /** null if only the comparator is used */
+    private final ToLongFunction<? super T> prefix;
+    /** prefix of each current element */
+    private final long[] prefixes;
+    private final int[] tree;
+
+    /**
+     * @param readers sorted readers, already positioned on their first element
+     * @param comparator comparator of element
+     */
+    LoserTree(List<? extends Segment.BufferedSegmentReader<T>> readers, Comparator<? super T> comparator) {
+        this(readers, comparator, null);
+    }
+
+    /**
+     * @param readers sorted readers, already positioned on their first element
+     * @param comparator comparator of element
+     * @param prefix key of an element that orders as unsigned long in the order of the comparator, null if none
+     */
+    LoserTree(List<? extends Segment.BufferedSegmentReader<T>> readers, Comparator<? super T> comparator,
+              ToLongFunction<? super T> prefix) {
+        this.readers = readers.toArray(new Segment.BufferedSegmentReader<?>[0]);
+        this.heads = new Object[this.readers.length];
+        this.comparator = comparator;
+        this.prefix = prefix;
+        this.prefixes = new long[this.readers.length];
+        this.tree = new int[Math.max(this.readers.length, 1)];
+
+        if (this.readers.length == 0) {
+            return;
+        }
+        for (int i = 0; i < this.readers.length; i++) {
+            load(i, this.readers[i].read());
+            tree[i] = NONE;
+        }
+        for (int i = this.readers.length - 1; i >= 0; i--) {
+            replay(i);
+        }
+    }
+
+    boolean isEmpty() {
+        return peek() == null;
+    }
+
+    /**
+     * @return reader holding the smallest element
+     */
+    @SuppressWarnings("unchecked")
+    Segment.BufferedSegmentReader<T> winner() {
+        return (Segment.BufferedSegmentReader<T>) readers[tree[0]];
+    }
+
+    /**
+     * @return the smallest element, null if all readers are exhausted
+     */
+    @SuppressWarnings("unchecked")
+    T peek() {
+        return readers.length == 0 ? null : (T) heads[tree[0]];
+    }
+
+    /**
+     * advance the winner to its next element and replay its path
+     */
+    void next() {
+        int winner = tree[0];
+        Segment.BufferedSegmentReader<?> reader = readers[winner];
+        reader.loadNewElement();
+        load(winner, reader.read());
+        replay(winner);
+    }
+
+    @SuppressWarnings("unchecked")
+    private void load(int player, Object head) {
+        heads[player] = head;
+        if (prefix != null && head != null) {
+            prefixes[player] = prefix.applyAsLong((T) head);
+        }
+    }
+
+    private void replay(int player) {
+        final int[] nodes = tree;
+        int winner = player;
+        for (int node = (player + nodes.length) >>> 1; node > 0; node >>>= 1) {
+            int challenger = nodes[node];
+            if (beats(challenger, winner)) {
+                nodes[node] = winner;
+                winner = challenger;
+            }
+        }
+        nodes[0] = winner;
+    }
+
+    @SuppressWarnings("unchecked")
+    private boolean beats(int a, int b) {
+        if (a == NONE) {
+            return true;
+        }
+        if (b == NONE) {
+            return false;
+        }
+        T x = (T) heads[a];
+        T y = (T) heads[b];
+        if (x == null) {
+            return false;
+        }
+        if (y == null) {
+            return true;
+        }
+        int cmp = prefix != null && prefixes[a] != prefixes[b]
+                ? Long.compareUnsigned(prefixes[a], prefixes[b])
+                : comparator.compare(x, y);
+        return cmp < 0 || cmp == 0 && a < b;
+    }
+}
@@ -0,0 +1,177 @@
+package com.gearwheel.externalsort;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * A segment of {@link IoBackend#MMAP}, the whole preallocated file is mapped
+ * <p>
+ *     a released segment is mapped again on the next access, mapping and unmapping are guarded by the segment
+ * </p>
+ *
+ * @author gear-wheel
+ */
+final class MappedSegment extends Segment {
+    private FileChannel channel;
+    /** null while released, read without the monitor by position and room */
+    private volatile MappedByteBuffer bb;
+    /** fill position while released */
+    private int position;
+
+
+    private MappedSegment(File file) {
+        super(file);
+    }
+
+    /**
+     * preallocate and map the whole file
+     * @param file segment file
+     * @param pos fill position
+     * @param segmentSizeBytes size of file
+     * @return segment
+     */
+    static MappedSegment map(File file, int pos, int segmentSizeBytes) {
+        if (file.exists() && file.length() != segmentSizeBytes) {
+            throw new IllegalStateException("segment file " + file + " should be of size " + segmentSizeBytes
+                    + " but was of size " + file.length());
+        }
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(segmentSizeBytes);
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        MappedSegment segment = new MappedSegment(file);
+        segment.doMap(pos, segmentSizeBytes);
+        segment.forced(pos);
+        return segment;
+    }
+
+    private void doMap(int pos, int segmentSizeBytes) {
+        try {
+            FileChannel fileChannel = (FileChannel) Files
+                    .newByteChannel(
+                            file.toPath(),
+                            StandardOpenOption.CREATE,
+                            StandardOpenOption.READ,
+                            StandardOpenOption.WRITE);
+            // map the whole file
+            MappedByteBuffer mappedByteBuffer = fileChannel.map(FileChannel.MapMode.READ_WRITE, 0, segmentSizeBytes);
+            // setPos
+            mappedByteBuffer.position(pos);
+            this.channel = fileChannel;
+            this.bb = mappedByteBuffer;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * merge threads may map the same run at once
+     * @return mapped buffer, position is the fill position
+     */
+    private synchronized MappedByteBuffer buffer() {
+        if (bb == null) {
+            doMap(position, (int) file.length());
+        }
+        return bb;
+    }
+
+    @Override
+    ByteBuffer writable(int bytes) {
+        MappedByteBuffer buffer = buffer();
+        return buffer.remaining() < bytes ? null : buffer;
+    }
+
+    @Override
+    int position() {
+        final MappedByteBuffer buffer = bb;
+        return buffer == null ? position : buffer.position();
+    }
+
+    @Override
+    int room() {
+        final MappedByteBuffer buffer = bb;
+        return buffer == null ? (int) file.length() - position : buffer.remaining();
+    }
+
+    @Override
+    boolean isOpen() {
+        return bb != null;
+    }
+
+    @Override
+    Input input(int from, int to) {
+        final ByteBuffer slice = buffer().asReadOnlyBuffer();
+        slice.limit(to);
+        slice.position(from);
+        return new Input() {
+            private boolean read;
+
+            @Override
+            boolean next() {
+                if (read) {
+                    return false;
+                }
+                read = true;
+                return slice.hasRemaining();
+            }
+
+            @Override
+            ByteBuffer buffer() {
+                return slice;
+            }
+        };
+    }
+
+    @Override
+    void readAt(int offset, ByteBuffer dst) {
+        ByteBuffer src = buffer().duplicate();
+        src.limit(Math.min(src.position(), offset + dst.remaining()));
+        src.position(offset);
+        dst.put(src);
+    }
+
+    @Override
+    synchronized void forceContent() {
+        if (bb != null) {
+            bb.force();
+        }
+        else {
+            forceFile(file);
+        }
+    }
+
+    @Override
+    void doRelease() {
+        if (bb == null) {
+            return;
+        }
+        position = bb.position();
+        closeDirectBuffer(bb);
+        bb = null;
+        try {
+            channel.close();
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        finally {
+            channel = null;
+        }
+    }
+
+    @Override
+    Segment renamed(File target) {
+        MappedSegment segment = new MappedSegment(target);
+        segment.position = position;
+        return segment;
+    }
+}
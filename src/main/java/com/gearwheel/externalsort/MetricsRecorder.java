@@ -0,0 +1,228 @@
+package com.gearwheel.externalsort;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+import java.lang.management.ManagementFactory;
+import java.util.Comparator;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters of one sorter, updated once per run or merge, never per row, so they are always on
+ * <p>
+ *     only counting comparisons costs something per row, it is off unless asked for
+ * </p>
+ *
+ * @author gear-wheel
+ */
+final class MetricsRecorder implements SortMetricsMXBean {
+
+    private static final SortListener NOOP = new SortListener() { };
+
+    private final SortListener listener;
+    /** null if comparisons are not counted */
+    private final LongAdder comparisons;
+    private ObjectName objectName;
+
+    private final AtomicLong rowsAppended = new AtomicLong();
+    private final AtomicLong runsCreated = new AtomicLong();
+    private final AtomicLong bytesSpilled = new AtomicLong();
+    private final AtomicLong bytesMergeRead = new AtomicLong();
+    private final AtomicLong bytesMergeWritten = new AtomicLong();
+    private final AtomicLong rowsSorted = new AtomicLong();
+    private final AtomicLong sortNanos = new AtomicLong();
+    private final AtomicLong flushNanos = new AtomicLong();
+    private final AtomicLong mergeNanos = new AtomicLong();
+    private final AtomicInteger merges = new AtomicInteger();
+    private final AtomicInteger maxMergeFanIn = new AtomicInteger();
+    private final AtomicInteger peakBufferRows = new AtomicInteger();
+
+    /**
+     * @param listener callbacks, may be null
+     * @param countComparisons count the calls of the comparator
+     */
+    MetricsRecorder(SortListener listener, boolean countComparisons) {
+        this.listener = listener == null ? NOOP : listener;
+        this.comparisons = countComparisons ? new LongAdder() : null;
+    }
+
+    /**
+     * @param comparator comparator of the sorter
+     * @return the comparator, counting its calls if comparisons are counted
+     */
+    Comparator<long[]> counting(Comparator<long[]> comparator) {
+        if (comparisons == null) {
+            return comparator;
+        }
+        final LongAdder counter = comparisons;
+        return (x, y) -> {
+            counter.increment();
+            return comparator.compare(x, y);
+        };
+    }
+
+    void appended(long rows) {
+        rowsAppended.addAndGet(rows);
+    }
+
+    /**
+     * @param rows rows in the buffer when sorted
+     * @param nanos nanos of sorting and combining
+     */
+    void sorted(int rows, long nanos) {
+        rowsSorted.addAndGet(rows);
+        sortNanos.addAndGet(nanos);
+        peakBufferRows.accumulateAndGet(rows, Math::max);
+    }
+
+    void flushed(long nanos) {
+        flushNanos.addAndGet(nanos);
+    }
+
+    /**
+     * @param rows rows of the run
+     * @param bytes bytes of the run
+     * @param sortNanos nanos of sorting and combining
+     * @param flushNanos nanos of writing and committing
+     */
+    void runWritten(int rows, long bytes, long sortNanos, long flushNanos) {
+        bytesSpilled.addAndGet(bytes);
+        runsCreated.incrementAndGet();
+        flushed(flushNanos);
+        listener.runWritten(rows, bytes, sortNanos, flushNanos);
+    }
+
+    void merged(int fanIn, long bytesRead, long bytesWritten, long nanos) {
+        merges.incrementAndGet();
+        maxMergeFanIn.accumulateAndGet(fanIn, Math::max);
+        bytesMergeRead.addAndGet(bytesRead);
+        bytesMergeWritten.addAndGet(bytesWritten);
+        mergeNanos.addAndGet(nanos);
+        listener.mergeFinished(fanIn, bytesRead, bytesWritten, nanos);
+    }
+
+    SortMetrics finished() {
+        SortMetrics metrics = snapshot();
+        listener.sortFinished(metrics);
+        return metrics;
+    }
+
+    SortMetrics snapshot() {
+        return new SortMetrics(rowsAppended.get(), runsCreated.get(), bytesSpilled.get(),
+                bytesMergeRead.get(), bytesMergeWritten.get(), rowsSorted.get(),
+                sortNanos.get(), flushNanos.get(), mergeNanos.get(), getComparisons(),
+                merges.get(), maxMergeFanIn.get(), peakBufferRows.get());
+    }
+
+    /**
+     * register as {@code com.gearwheel.externalsort:type=FastLongBaseExternalSort,name=<name>} in the platform mbean server
+     * @param name name of the sorter
+     */
+    void register(String name) {
+        try {
+            ObjectName objectName = new ObjectName("com.gearwheel.externalsort:type=FastLongBaseExternalSort,name="
+                    + ObjectName.quote(name));
+            ManagementFactory.getPlatformMBeanServer()
+                    .registerMBean(new StandardMBean(this, SortMetricsMXBean.class, true), objectName);
+            this.objectName = objectName;
+        }
+        catch (JMException e) {
+            throw new IllegalArgumentException("can't register the metrics of " + name, e);
+        }
+    }
+
+    void unregister() {
+        if (objectName == null) {
+            return;
+        }
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            server.unregisterMBean(objectName);
+        }
+        catch (JMException ignore) { }
+        objectName = null;
+    }
+
+    @Override
+    public long getRowsAppended() {
+        return rowsAppended.get();
+    }
+
+    @Override
+    public long getRunsCreated() {
+        return runsCreated.get();
+    }
+
+    @Override
+    public long getBytesSpilled() {
+        return bytesSpilled.get();
+    }
+
+    @Override
+    public long getBytesMergeRead() {
+        return bytesMergeRead.get();
+    }
+
+    @Override
+    public long getBytesMergeWritten() {
+        return bytesMergeWritten.get();
+    }
+
+    @Override
+    public long getRowsSorted() {
+        return rowsSorted.get();
+    }
+
+    @Override
+    public long getSortNanos() {
+        return sortNanos.get();
+    }
+
+    @Override
+    public long getFlushNanos() {
+        return flushNanos.get();
+    }
+
+    @Override
+    public long getMergeNanos() {
+        return mergeNanos.get();
+    }
+
+    @Override
+    public long getComparisons() {
+        return comparisons == null ? -1L : comparisons.sum();
+    }
+
+    @Override
+    public int getMerges() {
+        return merges.get();
+    }
+
+    @Override
+    public int getMaxMergeFanIn() {
+        return maxMergeFanIn.get();
+    }
+
+    @Override
+    public int getPeakBufferRows() {
+        return peakBufferRows.get();
+    }
+
+    @Override
+    public double getSortRowsPerSecond() {
+        return snapshot().sortRowsPerSecond();
+    }
+
+    @Override
+    public double getFlushBytesPerSecond() {
+        return snapshot().flushBytesPerSecond();
+    }
+
+    @Override
+    public double getMergeBytesPerSecond() {
+        return snapshot().mergeBytesPerSecond();
+    }
+}
@@ -0,0 +1,332 @@
+package com.gearwheel.externalsort;
+
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
+import java.util.Comparator;
+
+/**
+ * Run buffer in direct memory, rows are stored back to back as big endian longs, the byte order of the segments
+ * <p>
+ *     sorting moves the rows themselves between the rows and a scratch buffer of the same size, so the sorted order
+ *     is the row order and a sorted run is copied to its segment in bulk. nothing is allocated on the heap per row.
+ *     the buffers grow like a heap buffer and take up to two times the rows of the capacity,
+ *     bounded by {@code -XX:MaxDirectMemorySize}
+ * </p>
+ *
+ * @author gear-wheel
+ */
+final class OffHeapRowBuffer extends RowBuffer {
+
+    private final int rowBytes;
+    private ByteBuffer rows;
+    /** scratch of the sorts, null until the first sort */
+    private ByteBuffer aux;
+
+    OffHeapRowBuffer(int columns, int capacity) {
+        super(columns, capacity);
+        if ((long) capacity * columns * Long.BYTES > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("an off heap run buffer holds at most 2 GB, capacity: " + capacity);
+        }
+        this.rowBytes = columns * Long.BYTES;
+        this.rows = ByteBuffer.allocateDirect(Math.min(capacity, INITIAL_ROWS) * rowBytes);
+    }
+
+    /**
+     * Direct memory of a full buffer
+     * @param columns columns per row
+     * @param rows capacity
+     * @return bytes
+     */
+    static long memorySize(int columns, int rows) {
+        // rows and the sort scratch
+        return 2L * rows * columns * Long.BYTES;
+    }
+
+    @Override
+    int nextRow() {
+        if ((size + 1) * rowBytes > rows.capacity()) {
+            grow(size + 1);
+        }
+        sorted = false;
+        return columns * size++;
+    }
+
+    @Override
+    int nextRows(int rows) {
+        if ((size + rows) * rowBytes > this.rows.capacity()) {
+            grow(size + rows);
+        }
+        sorted = false;
+        int index = columns * size;
+        size += rows;
+        return index;
+    }
+
+    @Override
+    void put(int index, long value) {
+        rows.putLong(index * Long.BYTES, value);
+    }
+
+    @Override
+    void put(int index, LongBuffer src, int length) {
+        LongBuffer target = rows.asLongBuffer();
+        target.position(index);
+        if (src.hasArray()) {
+            target.put(src.array(), src.arrayOffset() + src.position(), length);
+            src.position(src.position() + length);
+        }
+        else {
+            LongBuffer values = src.duplicate();
+            values.limit(values.position() + length);
+            target.put(values);
+            src.position(values.position());
+        }
+    }
+
+    @Override
+    void add(long[] row) {
+        final int offset = nextRow() * Long.BYTES;
+        for (int c = 0; c < columns; c++) {
+            rows.putLong(offset + c * Long.BYTES, row[c]);
+        }
+    }
+
+    @Override
+    void load(int row, long[] dst) {
+        load(rows, row, dst);
+    }
+
+    private void load(ByteBuffer region, int row, long[] dst) {
+        final int offset = row * rowBytes;
+        for (int c = 0; c < dst.length; c++) {
+            dst[c] = region.getLong(offset + c * Long.BYTES);
+        }
+    }
+
+    @Override
+    void store(int row, long[] src) {
+        store(rows, row, src);
+    }
+
+    private void store(ByteBuffer region, int row, long[] src) {
+        final int offset = row * rowBytes;
+        for (int c = 0; c < src.length; c++) {
+            region.putLong(offset + c * Long.BYTES, src[c]);
+        }
+    }
+
+    /**
+     * rows are kept in sorted order
+     */
+    @Override
+    int rowOf(int rank) {
+        return rank;
+    }
+
+    /**
+     * groups are moved to the front, a group never starts before its rank
+     */
+    @Override
+    void setCombined(int rank, int row, long[] acc) {
+        store(rank, acc);
+    }
+
+    @Override
+    void dropSorted(int from, int to) {
+        checkSorted();
+        if (to > from) {
+            // copies never longer than the gap, so they don't overlap
+            final int gap = to - from;
+            for (int row = to; row < size; row += gap) {
+                copy(rows, row, rows, row - gap, Math.min(gap, size - row));
+            }
+            size -= gap;
+        }
+        sorted = false;
+    }
+
+    @Override
+    void sort(Comparator<long[]> comparator) {
+        sortAfter(0, null, comparator);
+    }
+
+    @Override
+    void sort(RadixSorter radixSorter) {
+        sortAfter(0, radixSorter, null);
+    }
+
+    @Override
+    void sortAfter(int sortedRows, RadixSorter radixSorter, Comparator<long[]> comparator) {
+        if (aux == null || aux.capacity() < rows.capacity()) {
+            Segment.closeDirectBuffer(aux);
+            aux = ByteBuffer.allocateDirect(rows.capacity());
+        }
+        final int from = Math.min(sortedRows, size);
+        boolean inAux = radixSorter != null
+                ? radixSorter.sortRows(rows, aux, columns, from, size - from)
+                : mergeSort(from, size, comparator);
+
+        if (from > 0) {
+            // merge the sorted rows in front with the sorted tail into aux, the front wins ties.
+            // a row is never written after the tail row read next, so the tail may be in aux already
+            final ByteBuffer tail = inAux ? aux : rows;
+            int p = 0;
+            int q = from;
+            int k = 0;
+            if (q < size) {
+                load(rows, p, left);
+                load(tail, q, right);
+            }
+            while (p < from && q < size) {
+                if (comparator.compare(left, right) <= 0) {
+                    store(aux, k++, left);
+                    if (++p < from) {
+                        load(rows, p, left);
+                    }
+                }
+                else {
+                    store(aux, k++, right);
+                    if (++q < size) {
+                        load(tail, q, right);
+                    }
+                }
+            }
+            if (p < from) {
+                copy(rows, p, aux, k, from - p);
+            }
+            else if (!inAux) {
+                copy(rows, q, aux, k, size - q);
+            }
+            inAux = true;
+        }
+        if (inAux) {
+            ByteBuffer tmp = rows;
+            rows = aux;
+            aux = tmp;
+        }
+        sorted = true;
+    }
+
+    /**
+     * stable bottom up merge sort of the rows {@code [first, end)}, runs are insertion sorted first
+     * @return true if the sorted rows ended in aux
+     */
+    private boolean mergeSort(int first, int end, Comparator<long[]> comparator) {
+        for (int lo = first; lo < end; lo += INSERTION_SORT_THRESHOLD) {
+            insertionSort(lo, Math.min(lo + INSERTION_SORT_THRESHOLD, end), comparator);
+        }
+        ByteBuffer src = rows;
+        ByteBuffer dst = aux;
+        for (int width = INSERTION_SORT_THRESHOLD; width < end - first; width *= 2) {
+            for (int lo = first; lo < end; lo += 2 * width) {
+                int mid = Math.min(lo + width, end);
+                int hi = Math.min(lo + 2 * width, end);
+                merge(src, dst, lo, mid, hi, comparator);
+            }
+            ByteBuffer tmp = src;
+            src = dst;
+            dst = tmp;
+        }
+        return src == aux;
+    }
+
+    private void merge(ByteBuffer src, ByteBuffer dst, int lo, int mid, int hi, Comparator<long[]> comparator) {
+        if (mid >= hi) {
+            copy(src, lo, dst, lo, hi - lo);
+            return;
+        }
+        // already in order, just copy
+        load(src, mid - 1, left);
+        load(src, mid, right);
+        if (comparator.compare(left, right) <= 0) {
+            copy(src, lo, dst, lo, hi - lo);
+            return;
+        }
+        int p = lo;
+        int q = mid;
+        load(src, p, left);
+        for (int k = lo; k < hi; k++) {
+            if (q >= hi || p < mid && comparator.compare(left, right) <= 0) {
+                store(dst, k, left);
+                if (++p < mid) {
+                    load(src, p, left);
+                }
+            }
+            else {
+                store(dst, k, right);
+                if (++q < hi) {
+                    load(src, q, right);
+                }
+            }
+        }
+    }
+
+    private void insertionSort(int lo, int hi, Comparator<long[]> comparator) {
+        for (int i = lo + 1; i < hi; i++) {
+            load(i, left);
+            int j = i - 1;
+            while (j >= lo) {
+                load(j, right);
+                if (comparator.compare(right, left) <= 0) {
+                    break;
+                }
+                store(j + 1, right);
+                j--;
+            }
+            if (j + 1 != i) {
+                store(j + 1, left);
+            }
+        }
+    }
+
+    /**
+     * bulk copy of rows between or inside buffers, the ranges should not overlap
+     */
+    private void copy(ByteBuffer src, int srcRow, ByteBuffer dst, int dstRow, int count) {
+        if (count <= 0) {
+            return;
+        }
+        ByteBuffer from = src.duplicate();
+        from.limit((srcRow + count) * rowBytes).position(srcRow * rowBytes);
+        ByteBuffer to = dst.duplicate();
+        to.position(dstRow * rowBytes);
+        to.put(from);
+    }
+
+    private void grow(int minRows) {
+        int current = rows.capacity() / rowBytes;
+        int newRows = Math.min(capacity, Math.max(minRows, current + (current >> 1)));
+        ByteBuffer grown = ByteBuffer.allocateDirect(newRows * rowBytes);
+        copy(rows, 0, grown, 0, size);
+        Segment.closeDirectBuffer(rows);
+        rows = grown;
+    }
+
+    @Override
+    void writeTo(LongBaseStorage storage) {
+        writeRows(storage, 0, size);
+    }
+
+    @Override
+    void writeSortedTo(LongBaseStorage storage, int from, int to) {
+        checkSorted();
+        writeRows(storage, from, to);
+    }
+
+    private void writeRows(LongBaseStorage storage, int from, int to) {
+        if (from >= to) {
+            return;
+        }
+        ByteBuffer run = rows.duplicate();
+        run.limit(to * rowBytes).position(from * rowBytes);
+        storage.putRows(run);
+    }
+
+    @Override
+    void free() {
+        Segment.closeDirectBuffer(rows);
+        Segment.closeDirectBuffer(aux);
+        rows = null;
+        aux = null;
+    }
+}
@@ -0,0 +1,528 @@
+package com.gearwheel.externalsort;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.ToLongFunction;
+
+/**
+ * Range partitioned merge of sorted runs on several threads
+ * <p>
+ *     splitter rows are sampled from the runs, every run is cut at the splitters by a binary search of positional reads,
+ *     then every key range is merged on its own thread into its own out segments.
+ *     segments are created in range order, so the index of the storage keeps one globally sorted sequence.
+ *     encoded runs are addressed by block, a row inside a block is found by decoding from the block start.
+ *     the segments of a run are released once sampled and cut, a merge task maps one segment per run at a time
+ *     and the out segment it writes, so the mappings are bounded by the merge threads, not by the segments
+ * </p>
+ *
+ * @author gear-wheel
+ */
+final class ParallelMerger {
+
+    private static final int SAMPLES_PER_PARTITION = 64;
+
+    private static final AtomicInteger POOL_NUM = new AtomicInteger();
+
+    private final int columns;
+    private final int rowBytes;
+    private final Comparator<long[]> comparator;
+    /** null if none */
+    private final ToLongFunction<long[]> prefix;
+    private final int threads;
+    private final SegmentFormat format;
+    private final RowCombiner combiner;
+    private final IoBackend backend;
+    private final int ioBufferBytes;
+
+    /**
+     * @param columns columns per row
+     * @param comparator comparator of line content, should be thread safe
+     * @param prefix normalized first key compared before the comparator, null if none
+     * @param threads merge threads, also the number of key ranges
+     * @param format format of the runs and of the merged storage
+     * @param combiner combiner of equal rows, null to keep them all. equal rows never cross a cut
+     * @param backend io backend of the merged storage
+     * @param ioBufferBytes buffer size of {@link IoBackend#CHANNEL} segments
+     */
+    ParallelMerger(int columns, Comparator<long[]> comparator, ToLongFunction<long[]> prefix, int threads, SegmentFormat format, RowCombiner combiner,
+                   IoBackend backend, int ioBufferBytes) {
+        if (threads < 2) {
+            throw new IllegalArgumentException("parallel merge needs at least 2 threads");
+        }
+        this.columns = columns;
+        this.rowBytes = columns * Long.BYTES;
+        this.comparator = comparator;
+        this.prefix = prefix;
+        this.threads = threads;
+        this.format = format;
+        this.combiner = combiner;
+        this.backend = backend;
+        this.ioBufferBytes = ioBufferBytes;
+    }
+
+    /**
+     * merge runs into a new storage
+     * @param runs sorted runs, every run is one or more segments, should not be empty
+     * @param directory directory of the new storage
+     * @param prefix prefix of the new storage
+     * @param durability durability of the new storage
+     * @return storage holding all rows in order
+     */
+    LongBaseStorage merge(List<List<Segment>> runs, File directory, String prefix, Durability durability) {
+        final List<RunIndex> indexes = new ArrayList<>(runs.size());
+        long totalRows = 0L;
+        for (List<Segment> run : runs) {
+            RunIndex index = new RunIndex(run);
+            index.release();
+            indexes.add(index);
+            totalRows += index.rows;
+        }
+        if (totalRows == 0L) {
+            throw new IllegalArgumentException("nothing to merge");
+        }
+
+        // cut every run at the splitters
+        final long[][] splitters = splitters(indexes, totalRows);
+        final int partitions = splitters.length + 1;
+        final long[][] cuts = new long[indexes.size()][partitions + 1];
+        final long[] row = new long[columns];
+        final long[] partitionRows = new long[partitions];
+        for (int r = 0; r < indexes.size(); r++) {
+            RunIndex index = indexes.get(r);
+            cuts[r][partitions] = index.rows;
+            for (int p = 1; p < partitions; p++) {
+                cuts[r][p] = index.lowerBound(splitters[p - 1], row);
+            }
+            index.release();
+            for (int p = 0; p < partitions; p++) {
+                partitionRows[p] += cuts[r][p + 1] - cuts[r][p];
+            }
+        }
+
+        // out segments in range order, empty ranges get none. they are created released, the task writing one maps it.
+        // encoded sizes are only bounded, every segment may waste up to one block at its end
+        final boolean raw = format == SegmentFormat.RAW;
+        final int maxSegmentBytes = raw ? LongBaseStorage.MAX_SEGMENT_BYTES / rowBytes * rowBytes : LongBaseStorage.MAX_SEGMENT_BYTES;
+        final int blockSlack = raw ? 0 : RowBlockCodec.HEADER_BYTES + RowBlockCodec.BLOCK_ROWS * rowBytes;
+        final List<List<Segment>> partitionSegments = new ArrayList<>(partitions);
+        LongBaseStorage storage = null;
+        for (int p = 0; p < partitions; p++) {
+            List<Segment> segments = new ArrayList<>();
+            long remaining = RowBlockCodec.maxEncodedBytes(format, partitionRows[p], columns);
+            while (remaining > 0) {
+                int sizeBytes = (int) Math.min(remaining + blockSlack, maxSegmentBytes);
+                if (storage == null) {
+                    storage = new LongBaseStorage(directory, prefix, sizeBytes, false, format, columns, backend, ioBufferBytes);
+                    storage.durability(durability);
+                }
+                else {
+                    storage.appendSegment(sizeBytes);
+                }
+                Segment segment = storage.segments.get(storage.segments.size() - 1);
+                segment.release();
+                segments.add(segment);
+                remaining -= sizeBytes - blockSlack;
+            }
+            partitionSegments.add(segments);
+        }
+        runPartitions(indexes, cuts, partitionSegments);
+
+        storage.commit();
+        for (List<Segment> run : runs) {
+            for (Segment segment : run) {
+                segment.release();
+            }
+        }
+        for (Segment segment : storage.segments) {
+            segment.seal();
+        }
+        // encoded partitions may need less segments than bounded
+        storage.removeEmptySegments();
+        storage.commit();
+        return storage;
+    }
+
+    private void runPartitions(List<RunIndex> indexes, long[][] cuts, List<List<Segment>> partitionSegments) {
+        final int poolNum = POOL_NUM.incrementAndGet();
+        final AtomicInteger threadNum = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(threads, r -> {
+            Thread thread = new Thread(r, "external-sort-merge-" + poolNum + "-" + threadNum.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        try {
+            List<Future<?>> futures = new ArrayList<>(partitionSegments.size());
+            for (int p = 0; p < partitionSegments.size(); p++) {
+                if (partitionSegments.get(p).isEmpty()) {
+                    continue;
+                }
+                List<Segment.BufferedSegmentReader<long[]>> readers = new ArrayList<>(indexes.size());
+                for (int r = 0; r < indexes.size(); r++) {
+                    if (cuts[r][p] < cuts[r][p + 1]) {
+                        readers.add(indexes.get(r).reader(cuts[r][p], cuts[r][p + 1]));
+                    }
+                }
+                List<Segment> segments = partitionSegments.get(p);
+                futures.add(executor.submit(() -> mergePartition(readers, segments)));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        }
+        catch (ExecutionException e) {
+            throw new IllegalStateException("parallel merge failed", e.getCause());
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("interrupted while merging", e);
+        }
+        finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private void mergePartition(List<Segment.BufferedSegmentReader<long[]>> readers, List<Segment> segments) {
+        for (Segment.BufferedSegmentReader<long[]> reader : readers) {
+            reader.loadNewElement();
+        }
+        final LoserTree<long[]> tree = new LoserTree<>(readers, comparator, prefix);
+        final PartitionWriter writer = new PartitionWriter(segments);
+
+        if (combiner == null) {
+            while (!tree.isEmpty()) {
+                writer.write(tree.peek());
+                tree.next();
+            }
+            writer.finish();
+            return;
+        }
+
+        final long[] acc = new long[columns];
+        boolean hasAcc = false;
+        while (!tree.isEmpty()) {
+            long[] line = tree.peek();
+            if (hasAcc && comparator.compare(acc, line) == 0) {
+                combiner.combine(acc, line);
+            }
+            else {
+                if (hasAcc) {
+                    writer.write(acc);
+                }
+                System.arraycopy(line, 0, acc, 0, columns);
+                hasAcc = true;
+            }
+            tree.next();
+        }
+        if (hasAcc) {
+            writer.write(acc);
+        }
+        writer.finish();
+    }
+
+    /**
+     * writes rows of one partition through its segments, encoded blocks never cross segments.
+     * a segment is released once the next one is written
+     */
+    private final class PartitionWriter {
+        private final List<Segment> segments;
+        private final RowBlockCodec.Encoder encoder;
+        private int segmentIdx;
+
+        PartitionWriter(List<Segment> segments) {
+            this.segments = segments;
+            this.encoder = format == SegmentFormat.RAW ? null : new RowBlockCodec.Encoder(columns);
+        }
+
+        void write(long[] line) {
+            if (encoder != null) {
+                if (encoder.add(line, 0)) {
+                    writeBlock();
+                }
+                return;
+            }
+            ByteBuffer target = writable(rowBytes);
+            for (long l : line) {
+                target.putLong(l);
+            }
+        }
+
+        void finish() {
+            if (encoder != null && !encoder.isEmpty()) {
+                writeBlock();
+            }
+            segments.get(segmentIdx).release();
+        }
+
+        private void writeBlock() {
+            int bytes = encoder.encode();
+            encoder.writeTo(writable(bytes));
+        }
+
+        private ByteBuffer writable(int bytes) {
+            ByteBuffer target = segments.get(segmentIdx).writable(bytes);
+            while (target == null) {
+                segments.get(segmentIdx).release();
+                target = segments.get(++segmentIdx).writable(bytes);
+            }
+            return target;
+        }
+    }
+
+    /**
+     * sample rows of every run in proportion to its size, the quantiles of the sorted sample are the splitters
+     */
+    private long[][] splitters(List<RunIndex> indexes, long totalRows) {
+        final long sampleTarget = (long) threads * SAMPLES_PER_PARTITION;
+        List<long[]> samples = new ArrayList<>();
+        for (RunIndex index : indexes) {
+            if (index.rows == 0) {
+                continue;
+            }
+            long count = Math.max(1L, Math.min(index.rows, index.rows * sampleTarget / totalRows));
+            long stride = index.rows / count;
+            for (long i = 0; i < count; i++) {
+                long[] sample = new long[columns];
+                index.readRow(i * stride + stride / 2, sample);
+                samples.add(sample);
+            }
+            index.release();
+        }
+        long[][] sorted = samples.toArray(new long[0][]);
+        Arrays.sort(sorted, comparator);
+
+        int partitions = Math.min(threads, sorted.length);
+        long[][] splitters = new long[Math.max(partitions - 1, 0)][];
+        for (int p = 1; p < partitions; p++) {
+            splitters[p - 1] = sorted[(int) ((long) p * sorted.length / partitions)];
+        }
+        return splitters;
+    }
+
+    /**
+     * row addressing over the segments of one run
+     */
+    private final class RunIndex {
+        final List<Segment> run;
+        /** first row of every segment */
+        final long[] starts;
+        final long rows;
+        /** first row, segment and byte offset of every block, null if raw */
+        final long[] blockStarts;
+        final int[] blockSegments;
+        final int[] blockOffsets;
+
+        /** one row, or one block if encoded */
+        private final ByteBuffer scratch;
+
+        RunIndex(List<Segment> run) {
+            this.run = run;
+            starts = new long[run.size()];
+            final boolean raw = format == SegmentFormat.RAW;
+            long[] bStarts = new long[16];
+            int[] bSegments = new int[16];
+            int[] bOffsets = new int[16];
+            int blocks = 0;
+            long total = 0L;
+            final ByteBuffer header = ByteBuffer.allocate(RowBlockCodec.HEADER_BYTES);
+            for (int i = 0; i < run.size(); i++) {
+                Segment segment = run.get(i);
+                final int limit = segment.position();
+                starts[i] = total;
+                if (raw) {
+                    total += limit / rowBytes;
+                    continue;
+                }
+                // walk the block headers
+                int offset = 0;
+                while (offset < limit) {
+                    if (blocks == bStarts.length) {
+                        bStarts = Arrays.copyOf(bStarts, blocks * 2);
+                        bSegments = Arrays.copyOf(bSegments, blocks * 2);
+                        bOffsets = Arrays.copyOf(bOffsets, blocks * 2);
+                    }
+                    bStarts[blocks] = total;
+                    bSegments[blocks] = i;
+                    bOffsets[blocks] = offset;
+                    blocks++;
+                    header.clear();
+                    segment.readAt(offset, header);
+                    total += RowBlockCodec.blockRows(header.getInt(0));
+                    offset += RowBlockCodec.HEADER_BYTES + header.getInt(Integer.BYTES);
+                }
+            }
+            scratch = ByteBuffer.allocate(raw ? rowBytes
+                    : (int) RowBlockCodec.maxEncodedBytes(format, RowBlockCodec.BLOCK_ROWS, columns));
+            rows = total;
+            blockStarts = raw ? null : Arrays.copyOf(bStarts, blocks);
+            blockSegments = raw ? null : Arrays.copyOf(bSegments, blocks);
+            blockOffsets = raw ? null : Arrays.copyOf(bOffsets, blocks);
+        }
+
+        void readRow(long rowIdx, long[] dst) {
+            if (blockStarts != null) {
+                int block = blockOf(rowIdx);
+                scratch.clear();
+                run.get(blockSegments[block]).readAt(blockOffsets[block], scratch);
+                scratch.flip();
+                long[] row = RowBlockCodec.lineReader(format, columns, rowIdx - blockStarts[block], 1L).apply(scratch);
+                System.arraycopy(row, 0, dst, 0, columns);
+                return;
+            }
+            int segment = segmentOf(rowIdx);
+            scratch.clear();
+            run.get(segment).readAt((int) (rowIdx - starts[segment]) * rowBytes, scratch);
+            for (int c = 0; c < columns; c++) {
+                dst[c] = scratch.getLong(c * Long.BYTES);
+            }
+        }
+
+        private int segmentOf(long rowIdx) {
+            int i = Arrays.binarySearch(starts, rowIdx);
+            if (i < 0) {
+                return -i - 2;
+            }
+            // skip empty segments starting at the same row
+            while (i + 1 < starts.length && starts[i + 1] == rowIdx) {
+                i++;
+            }
+            return i;
+        }
+
+        /**
+         * blocks are never empty, so their starts are distinct
+         */
+        private int blockOf(long rowIdx) {
+            int i = Arrays.binarySearch(blockStarts, rowIdx);
+            return i < 0 ? -i - 2 : i;
+        }
+
+        /**
+         * @return first row not less than key
+         */
+        long lowerBound(long[] key, long[] row) {
+            long lo = 0L;
+            long hi = rows;
+            while (lo < hi) {
+                long mid = (lo + hi) >>> 1;
+                readRow(mid, row);
+                if (comparator.compare(row, key) < 0) {
+                    lo = mid + 1;
+                }
+                else {
+                    hi = mid;
+                }
+            }
+            return lo;
+        }
+
+        /**
+         * release the segments mapped by positional reads
+         */
+        void release() {
+            for (Segment segment : run) {
+                segment.release();
+            }
+        }
+
+        /**
+         * reader of rows {@code [from, to)}, from is before to.
+         * an encoded run is read from the block holding its first row, the rows before it are skipped
+         */
+        Segment.BufferedSegmentReader<long[]> reader(long from, long to) {
+            final long skip;
+            final int first;
+            final int offset;
+            final int last;
+            final int end;
+            if (blockStarts != null) {
+                int block = blockOf(from);
+                first = blockSegments[block];
+                offset = blockOffsets[block];
+                skip = from - blockStarts[block];
+                last = blockSegments[blockOf(to - 1)];
+                // the reader stops after the last row
+                end = run.get(last).position();
+            }
+            else {
+                first = segmentOf(from);
+                offset = (int) (from - starts[first]) * rowBytes;
+                skip = 0L;
+                last = segmentOf(to - 1);
+                end = (int) (to - starts[last]) * rowBytes;
+            }
+            return new Segment.BufferedSegmentReader<>(new RunInput(run, first, offset, last, end),
+                    RowBlockCodec.lineReader(format, columns, skip, to - from));
+        }
+    }
+
+    /**
+     * bytes of a range of a run, its segments are opened one at a time.
+     * a segment is held while read, the range next to it may be read by another task at once
+     */
+    private static final class RunInput extends Segment.Input {
+        private final List<Segment> run;
+        private final int first;
+        private final int firstOffset;
+        private final int last;
+        private final int endOffset;
+
+        private int segmentIdx;
+        private Segment.Input input;
+        private boolean release;
+
+        RunInput(List<Segment> run, int first, int firstOffset, int last, int endOffset) {
+            this.run = run;
+            this.first = first;
+            this.segmentIdx = first;
+            this.firstOffset = firstOffset;
+            this.last = last;
+            this.endOffset = endOffset;
+        }
+
+        @Override
+        boolean next() {
+            while (segmentIdx <= last) {
+                if (input == null) {
+                    Segment segment = run.get(segmentIdx);
+                    release = !segment.hold();
+                    input = segment.input(segmentIdx == first ? firstOffset : 0,
+                            segmentIdx == last ? endOffset : segment.position());
+                }
+                if (input.next()) {
+                    return true;
+                }
+                letGo();
+                segmentIdx++;
+            }
+            return false;
+        }
+
+        @Override
+        ByteBuffer buffer() {
+            return input.buffer();
+        }
+
+        private void letGo() {
+            if (input != null) {
+                input.close();
+                input = null;
+                run.get(segmentIdx).letGo(release);
+            }
+        }
+
+        @Override
+        public void close() {
+            letGo();
+            segmentIdx = last + 1;
+        }
+    }
+}
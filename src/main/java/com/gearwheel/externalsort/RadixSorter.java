@@ -0,0 +1,241 @@
+package com.gearwheel.externalsort;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * LSD radix sort of a run buffer on 64-bit key columns
+ * <p>
+ *     keys are normalized with a xor mask so that they order as unsigned longs,
+ *     then sorted byte by byte from the last key column to the first, skipping bytes that are equal for all rows
+ *     the sorter only holds the key columns, scratch arrays belong to the sorted buffer so one sorter can be shared by threads
+ * </p>
+ *
+ * @author gear-wheel
+ */
+final class RadixSorter {
+
+    static final long SIGNED = Long.MIN_VALUE;
+    static final long UNSIGNED = 0L;
+
+    private static final int RADIX_BITS = 8;
+    private static final int RADIX = 1 << RADIX_BITS;
+    private static final int PASSES = Long.SIZE / RADIX_BITS;
+
+    private final int[] keyColumns;
+    private final long[] masks;
+
+    /**
+     * @param keyColumns key column indices, most significant first
+     * @param masks xor mask per key column, {@link #SIGNED} or {@link #UNSIGNED}, all bits flipped if descending
+     */
+    RadixSorter(int[] keyColumns, long[] masks) {
+        if (keyColumns.length == 0 || keyColumns.length != masks.length) {
+            throw new IllegalArgumentException("key columns should not be empty and match the masks");
+        }
+        this.keyColumns = keyColumns.clone();
+        this.masks = masks.clone();
+    }
+
+    /**
+     * Estimated heap size of the key arrays
+     * @param rows capacity
+     * @return bytes
+     */
+    static long memorySize(int rows) {
+        return rows * 16L + 2 * 16;
+    }
+
+    /**
+     * comparator giving the same order, used by the merge
+     */
+    KeyComparator comparator() {
+        return new KeyComparator(keyColumns, masks);
+    }
+
+    /**
+     * @return most significant key column
+     */
+    int firstKeyColumn() {
+        return keyColumns[0];
+    }
+
+    /**
+     * @return mask of the most significant key column
+     */
+    long firstMask() {
+        return masks[0];
+    }
+
+    void checkColumns(int columns) {
+        for (int c : keyColumns) {
+            if (c < 0 || c >= columns) {
+                throw new IllegalArgumentException("key column " + c + " out of range, columns: " + columns);
+            }
+        }
+    }
+
+    /**
+     * sort the permutation {@code order[0, size)} of rows in {@code data}
+     *
+     * @param data rows back to back
+     * @param columns columns per row
+     * @param size row count
+     * @param order output permutation
+     * @param orderAux scratch of the same length
+     * @param keys scratch, at least {@code size} long
+     * @param keysAux scratch, at least {@code size} long
+     */
+    void sort(long[] data, int columns, int size, int[] order, int[] orderAux, long[] keys, long[] keysAux) {
+        sort(data, columns, 0, size, order, orderAux, keys, keysAux);
+    }
+
+    /**
+     * sort the rows {@code [first, first + size)} of {@code data} into the permutation {@code order[0, size)}
+     *
+     * @param data rows back to back
+     * @param columns columns per row
+     * @param first first row sorted
+     * @param size row count
+     * @param order output permutation
+     * @param orderAux scratch of the same length
+     * @param keys scratch, at least {@code size} long
+     * @param keysAux scratch, at least {@code size} long
+     */
+    void sort(long[] data, int columns, int first, int size, int[] order, int[] orderAux, long[] keys, long[] keysAux) {
+        final int[][] histograms = new int[PASSES][RADIX];
+        for (int i = 0; i < size; i++) {
+            order[i] = first + i;
+        }
+
+        int[] src = order;
+        int[] dst = orderAux;
+        for (int k = keyColumns.length - 1; k >= 0; k--) {
+            final int column = keyColumns[k];
+            final long mask = masks[k];
+            long[] keySrc = keys;
+            long[] keyDst = keysAux;
+
+            // gather the keys in the current order
+            for (int i = 0; i < size; i++) {
+                keySrc[i] = data[src[i] * columns + column] ^ mask;
+            }
+            countBytes(keySrc, size, histograms);
+
+            for (int pass = 0; pass < PASSES; pass++) {
+                int[] histogram = histograms[pass];
+                if (isTrivial(histogram, size)) {
+                    continue;
+                }
+                // prefix sums
+                int sum = 0;
+                for (int b = 0; b < RADIX; b++) {
+                    int count = histogram[b];
+                    histogram[b] = sum;
+                    sum += count;
+                }
+                final int shift = pass * RADIX_BITS;
+                for (int i = 0; i < size; i++) {
+                    long key = keySrc[i];
+                    int pos = histogram[(int) (key >>> shift) & (RADIX - 1)]++;
+                    keyDst[pos] = key;
+                    dst[pos] = src[i];
+                }
+
+                long[] keyTmp = keySrc;
+                keySrc = keyDst;
+                keyDst = keyTmp;
+                int[] tmp = src;
+                src = dst;
+                dst = tmp;
+            }
+        }
+
+        if (src != order) {
+            System.arraycopy(src, 0, order, 0, size);
+        }
+    }
+
+    /**
+     * sort the rows {@code [first, first + size)} of {@code src} by moving the rows themselves, the same rows of
+     * {@code dst} are scratch. rows are back to back, every value a big endian long
+     *
+     * @param src rows
+     * @param dst scratch of the same size
+     * @param columns columns per row
+     * @param first first row sorted
+     * @param size row count
+     * @return true if the sorted rows ended in {@code dst}
+     */
+    boolean sortRows(ByteBuffer src, ByteBuffer dst, int columns, int first, int size) {
+        final int[][] histograms = new int[PASSES][RADIX];
+        final int rowBytes = columns * Long.BYTES;
+        final int end = first + size;
+
+        ByteBuffer from = src;
+        ByteBuffer to = dst;
+        for (int k = keyColumns.length - 1; k >= 0; k--) {
+            final int keyOffset = keyColumns[k] * Long.BYTES;
+            final long mask = masks[k];
+
+            for (int[] histogram : histograms) {
+                Arrays.fill(histogram, 0);
+            }
+            for (int i = first; i < end; i++) {
+                long key = from.getLong(i * rowBytes + keyOffset) ^ mask;
+                for (int pass = 0; pass < PASSES; pass++) {
+                    histograms[pass][(int) (key >>> (pass * RADIX_BITS)) & (RADIX - 1)]++;
+                }
+            }
+
+            for (int pass = 0; pass < PASSES; pass++) {
+                int[] histogram = histograms[pass];
+                if (isTrivial(histogram, size)) {
+                    continue;
+                }
+                // prefix sums, as rows of the buffer
+                int sum = first;
+                for (int b = 0; b < RADIX; b++) {
+                    int count = histogram[b];
+                    histogram[b] = sum;
+                    sum += count;
+                }
+                final int shift = pass * RADIX_BITS;
+                for (int i = first; i < end; i++) {
+                    final int offset = i * rowBytes;
+                    long key = from.getLong(offset + keyOffset) ^ mask;
+                    final int target = histogram[(int) (key >>> shift) & (RADIX - 1)]++ * rowBytes;
+                    for (int c = 0; c < rowBytes; c += Long.BYTES) {
+                        to.putLong(target + c, from.getLong(offset + c));
+                    }
+                }
+
+                ByteBuffer tmp = from;
+                from = to;
+                to = tmp;
+            }
+        }
+        return from == dst;
+    }
+
+    private static void countBytes(long[] keySrc, int size, int[][] h) {
+        for (int[] histogram : h) {
+            Arrays.fill(histogram, 0);
+        }
+        for (int i = 0; i < size; i++) {
+            long key = keySrc[i];
+            for (int pass = 0; pass < PASSES; pass++) {
+                h[pass][(int) (key >>> (pass * RADIX_BITS)) & (RADIX - 1)]++;
+            }
+        }
+    }
+
+    private static boolean isTrivial(int[] histogram, int size) {
+        for (int count : histogram) {
+            if (count != 0) {
+                return count == size;
+            }
+        }
+        return true;
+    }
+}
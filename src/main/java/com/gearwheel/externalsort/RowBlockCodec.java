@@ -0,0 +1,267 @@
+package com.gearwheel.externalsort;
+
+import java.nio.ByteBuffer;
+import java.util.function.Function;
+
+/**
+ * Row encoding of {@link SegmentFormat}
+ * <p>
+ *     a {@link SegmentFormat#DELTA_VARINT} block is an int header, the row count with the high bit set if the rows are stored raw,
+ *     an int payload size so readers can skip the block, then the rows.
+ *     the delta of the first row of a block is taken against 0, so every block decodes on its own
+ * </p>
+ *
+ * @author gear-wheel
+ */
+final class RowBlockCodec {
+
+    static final int BLOCK_ROWS = 256;
+    static final int HEADER_BYTES = 2 * Integer.BYTES;
+
+    private static final int RAW_FLAG = 0x80000000;
+    private static final int MAX_VARINT_BYTES = 10;
+
+    private RowBlockCodec() {}
+
+    /**
+     * upper bound of the encoded size
+     * @param format segment format
+     * @param rows row count
+     * @param columns columns per row
+     * @return bytes
+     */
+    static long maxEncodedBytes(SegmentFormat format, long rows, int columns) {
+        long raw = rows * columns * Long.BYTES;
+        if (format == SegmentFormat.RAW) {
+            return raw;
+        }
+        return raw + (rows + BLOCK_ROWS - 1) / BLOCK_ROWS * HEADER_BYTES;
+    }
+
+    /**
+     * reader of every line of a buffer, every reader reuses its own array
+     * @param format segment format
+     * @param columns columns per row
+     * @return line reader
+     */
+    static Function<ByteBuffer, long[]> lineReader(SegmentFormat format, int columns) {
+        if (format == SegmentFormat.RAW) {
+            return LongRowBuffer.lineReader(columns);
+        }
+        return new Decoder(columns, 0L, Long.MAX_VALUE);
+    }
+
+    /**
+     * reader of some lines, the buffer should be positioned at the start of a block (or at a line if raw).
+     * null is returned once {@code maxRows} lines are read
+     * @param format segment format
+     * @param columns columns per row
+     * @param skipRows lines skipped first
+     * @param maxRows lines read
+     * @return line reader
+     */
+    static Function<ByteBuffer, long[]> lineReader(SegmentFormat format, int columns, long skipRows, long maxRows) {
+        if (format == SegmentFormat.RAW) {
+            return new RawReader(columns, skipRows, maxRows);
+        }
+        return new Decoder(columns, skipRows, maxRows);
+    }
+
+    static long zigzag(long v) {
+        return (v << 1) ^ (v >> 63);
+    }
+
+    static long unzigzag(long z) {
+        return (z >>> 1) ^ -(z & 1);
+    }
+
+    static int varintBytes(long v) {
+        int bytes = 1;
+        while ((v & ~0x7FL) != 0) {
+            v >>>= 7;
+            bytes++;
+        }
+        return bytes;
+    }
+
+    static void putVarint(ByteBuffer bb, long v) {
+        while ((v & ~0x7FL) != 0) {
+            bb.put((byte) ((v & 0x7F) | 0x80));
+            v >>>= 7;
+        }
+        bb.put((byte) v);
+    }
+
+    static long getVarint(ByteBuffer bb) {
+        long v = 0L;
+        int shift = 0;
+        byte b;
+        do {
+            b = bb.get();
+            v |= (long) (b & 0x7F) << shift;
+            shift += 7;
+        } while (b < 0);
+        return v;
+    }
+
+    /**
+     * @param header first int of a block
+     * @return row count
+     */
+    static int blockRows(int header) {
+        return header & ~RAW_FLAG;
+    }
+
+    /**
+     * collects rows into a block and encodes it
+     */
+    static final class Encoder {
+        private final int columns;
+        private final long[] rows;
+        private int size;
+        private final ByteBuffer encoded;
+
+        Encoder(int columns) {
+            this.columns = columns;
+            this.rows = new long[BLOCK_ROWS * columns];
+            this.encoded = ByteBuffer.allocate(HEADER_BYTES + BLOCK_ROWS * columns * MAX_VARINT_BYTES);
+        }
+
+        /**
+         * @return true if the block is full and should be written
+         */
+        boolean add(long[] src, int offset) {
+            System.arraycopy(src, offset, rows, size * columns, columns);
+            return ++size >= BLOCK_ROWS;
+        }
+
+        boolean isEmpty() {
+            return size == 0;
+        }
+
+        /**
+         * encode the pending rows
+         * @return encoded bytes, to be written by {@link #writeTo(ByteBuffer)}
+         */
+        int encode() {
+            final int cols = columns;
+            int varintBytes = 0;
+            for (int i = 0; i < size * cols; i++) {
+                long previous = i < cols ? 0L : rows[i - cols];
+                varintBytes += varintBytes(zigzag(rows[i] - previous));
+            }
+            final int rawBytes = size * cols * Long.BYTES;
+
+            encoded.clear();
+            if (varintBytes < rawBytes) {
+                encoded.putInt(size);
+                encoded.putInt(varintBytes);
+                for (int i = 0; i < size * cols; i++) {
+                    long previous = i < cols ? 0L : rows[i - cols];
+                    putVarint(encoded, zigzag(rows[i] - previous));
+                }
+            }
+            else {
+                encoded.putInt(size | RAW_FLAG);
+                encoded.putInt(rawBytes);
+                for (int i = 0; i < size * cols; i++) {
+                    encoded.putLong(rows[i]);
+                }
+            }
+            encoded.flip();
+            return encoded.remaining();
+        }
+
+        void writeTo(ByteBuffer target) {
+            target.put(encoded);
+            size = 0;
+        }
+    }
+
+    /**
+     * decodes block after block, the returned row is reused
+     */
+    static final class Decoder implements Function<ByteBuffer, long[]> {
+        private final long[] row;
+        private int blockRemaining;
+        private boolean raw;
+        private long skipRows;
+        private long remainingRows;
+
+        Decoder(int columns, long skipRows, long maxRows) {
+            this.row = new long[columns];
+            this.skipRows = skipRows;
+            this.remainingRows = maxRows;
+        }
+
+        @Override
+        public long[] apply(ByteBuffer bb) {
+            while (skipRows > 0) {
+                skipRows--;
+                decode(bb);
+            }
+            if (remainingRows <= 0 || blockRemaining == 0 && !bb.hasRemaining()) {
+                return null;
+            }
+            remainingRows--;
+            decode(bb);
+            return row;
+        }
+
+        private void decode(ByteBuffer bb) {
+            final long[] line = row;
+            if (blockRemaining == 0) {
+                int header = bb.getInt();
+                // payload size, only used to skip blocks
+                bb.getInt();
+                raw = (header & RAW_FLAG) != 0;
+                blockRemaining = blockRows(header);
+                for (int i = 0; i < line.length; i++) {
+                    line[i] = 0L;
+                }
+            }
+            if (raw) {
+                for (int i = 0; i < line.length; i++) {
+                    line[i] = bb.getLong();
+                }
+            }
+            else {
+                for (int i = 0; i < line.length; i++) {
+                    line[i] += unzigzag(getVarint(bb));
+                }
+            }
+            blockRemaining--;
+        }
+    }
+
+    /**
+     * raw reader of some lines
+     */
+    private static final class RawReader implements Function<ByteBuffer, long[]> {
+        private final long[] row;
+        private long skipRows;
+        private long remainingRows;
+
+        RawReader(int columns, long skipRows, long maxRows) {
+            this.row = new long[columns];
+            this.skipRows = skipRows;
+            this.remainingRows = maxRows;
+        }
+
+        @Override
+        public long[] apply(ByteBuffer bb) {
+            if (skipRows > 0) {
+                bb.position((int) (bb.position() + skipRows * row.length * Long.BYTES));
+                skipRows = 0;
+            }
+            if (remainingRows <= 0 || !bb.hasRemaining()) {
+                return null;
+            }
+            remainingRows--;
+            for (int i = 0; i < row.length; i++) {
+                row[i] = bb.getLong();
+            }
+            return row;
+        }
+    }
+}
@@ -0,0 +1,267 @@
+package com.gearwheel.externalsort;
+
+import java.nio.LongBuffer;
+import java.util.Comparator;
+
+/**
+ * In-memory run buffer of rows of fixed width
+ * <p>
+ *     rows are appended, sorted, combined and written to a storage as one run,
+ *     on the heap by {@link LongRowBuffer} or off the heap by {@link OffHeapRowBuffer}.
+ *     the sorted order is addressed by rank, {@link #rowOf(int)} maps a rank to a row.
+ *     rows handed to the comparator are two reused scratch arrays, comparators must not keep them
+ * </p>
+ *
+ * @author gear-wheel
+ */
+abstract class RowBuffer {
+
+    static final int INITIAL_ROWS = 1024;
+    static final int INSERTION_SORT_THRESHOLD = 16;
+
+    final int columns;
+    final int capacity;
+    int size;
+    boolean sorted;
+
+    final long[] left;
+    final long[] right;
+
+    RowBuffer(int columns, int capacity) {
+        if (columns <= 0 || capacity <= 0) {
+            throw new IllegalArgumentException("columns and capacity should be positive, columns: " + columns + " capacity: " + capacity);
+        }
+        this.columns = columns;
+        this.capacity = capacity;
+        this.left = new long[columns];
+        this.right = new long[columns];
+    }
+
+    int columns() {
+        return columns;
+    }
+
+    int size() {
+        return size;
+    }
+
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    boolean isFull() {
+        return size >= capacity;
+    }
+
+    /**
+     * @return rows that can be added before the buffer is full
+     */
+    int remaining() {
+        return capacity - size;
+    }
+
+    void clear() {
+        size = 0;
+        sorted = false;
+    }
+
+    /**
+     * reserve the next row
+     * @return index of its first value for {@link #put(int, long)}
+     */
+    abstract int nextRow();
+
+    /**
+     * reserve the next rows back to back
+     * @param rows at most {@link #remaining()}
+     * @return index of the first value of the first new row
+     */
+    abstract int nextRows(int rows);
+
+    /**
+     * set a value of a reserved row
+     * @param index value index, row times columns plus column
+     * @param value value
+     */
+    abstract void put(int index, long value);
+
+    /**
+     * copy values into reserved rows
+     * @param index index of the first value
+     * @param src values, its position is moved past them
+     * @param length values copied
+     */
+    abstract void put(int index, LongBuffer src, int length);
+
+    void add(long[] row) {
+        final int index = nextRow();
+        for (int c = 0; c < columns; c++) {
+            put(index + c, row[c]);
+        }
+    }
+
+    abstract void load(int row, long[] dst);
+
+    abstract void store(int row, long[] src);
+
+    /**
+     * @param rank position in the sorted order
+     * @return row at the rank
+     */
+    abstract int rowOf(int rank);
+
+    /**
+     * the combined row of a group is the row at the rank from now on
+     * @param rank rank of the group after combining
+     * @param row first row of the group
+     * @param acc combined row
+     */
+    abstract void setCombined(int rank, int row, long[] acc);
+
+    /**
+     * drop the rows of the sorted order in {@code [from, to)}, the others are moved to the front in sorted order
+     * @param from first rank dropped
+     * @param to rank after the last one dropped
+     */
+    abstract void dropSorted(int from, int to);
+
+    /**
+     * stable sort of the buffered rows
+     * @param comparator comparator of line content
+     */
+    abstract void sort(Comparator<long[]> comparator);
+
+    /**
+     * stable radix sort of the buffered rows on the sorter's key columns
+     * @param radixSorter key columns
+     */
+    abstract void sort(RadixSorter radixSorter);
+
+    /**
+     * stable sort when the first rows are in sorted order already, only the rows after them are sorted,
+     * then both are merged
+     * @param sortedRows rows at the front in sorted order
+     * @param radixSorter key columns, null to sort by the comparator
+     * @param comparator comparator of line content
+     */
+    abstract void sortAfter(int sortedRows, RadixSorter radixSorter, Comparator<long[]> comparator);
+
+    /**
+     * append rows to storage, in sorted order if one of the sort methods was called
+     * @param storage target
+     */
+    abstract void writeTo(LongBaseStorage storage);
+
+    /**
+     * append rows of the sorted order to storage
+     * @param storage target
+     * @param from first rank
+     * @param to rank after the last one
+     */
+    abstract void writeSortedTo(LongBaseStorage storage, int from, int to);
+
+    /**
+     * free memory outside the heap, the buffer is not used anymore
+     */
+    void free() {
+    }
+
+    /**
+     * drop the rows from {@code from} on that are not before {@code cutoff}, the kept rows stay in insertion order
+     * @param from rows before are kept anyway
+     * @param cutoff first row that is dropped
+     * @param comparator comparator of line content
+     * @return rows kept
+     */
+    int retainBefore(int from, long[] cutoff, Comparator<long[]> comparator) {
+        int kept = from;
+        for (int i = from; i < size; i++) {
+            load(i, left);
+            if (comparator.compare(left, cutoff) < 0) {
+                if (kept != i) {
+                    store(kept, left);
+                }
+                kept++;
+            }
+        }
+        size = kept;
+        sorted = false;
+        return kept;
+    }
+
+    /**
+     * keep the first rows of the sorted order, they are moved to the front in that order
+     * @param rows rows to keep
+     */
+    void retainSorted(int rows) {
+        dropSorted(Math.min(rows, size), size);
+    }
+
+    /**
+     * @param row row searched
+     * @param comparator comparator the rows were sorted by
+     * @return first rank of the sorted order whose row is not before {@code row}
+     */
+    int lowerBoundSorted(long[] row, Comparator<long[]> comparator) {
+        checkSorted();
+        int low = 0;
+        int high = size;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            load(rowOf(mid), left);
+            if (comparator.compare(left, row) < 0) {
+                low = mid + 1;
+            }
+            else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * collapse neighbours of the sorted order that compare as equal
+     * @param comparator comparator the rows were sorted by
+     * @param combiner combiner
+     */
+    void combineSorted(Comparator<long[]> comparator, RowCombiner combiner) {
+        checkSorted();
+        if (size == 0) {
+            return;
+        }
+        final long[] acc = left;
+        final long[] row = right;
+        int kept = 0;
+        int group = rowOf(0);
+        load(group, acc);
+        for (int i = 1; i < size; i++) {
+            final int next = rowOf(i);
+            load(next, row);
+            if (comparator.compare(acc, row) == 0) {
+                combiner.combine(acc, row);
+                continue;
+            }
+            setCombined(kept++, group, acc);
+            group = next;
+            System.arraycopy(row, 0, acc, 0, columns);
+        }
+        setCombined(kept++, group, acc);
+        size = kept;
+    }
+
+    /**
+     * copy a row of the sorted order
+     * @param rank position in the sorted order
+     * @param dst destination
+     */
+    void copySorted(int rank, long[] dst) {
+        checkSorted();
+        load(rowOf(rank), dst);
+    }
+
+    final void checkSorted() {
+        if (!sorted) {
+            throw new IllegalStateException("buffer is not sorted");
+        }
+    }
+}
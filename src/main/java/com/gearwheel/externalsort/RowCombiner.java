@@ -0,0 +1,72 @@
+package com.gearwheel.externalsort;
+
+/**
+ * Collapses rows the sorter compares as equal
+ * <p>
+ *     called when a run is written and again when equal rows meet in a merge, so a combiner should be associative.
+ *     it should also be thread safe if runs are spilled asynchronously or merged in parallel
+ * </p>
+ * <pre>{@code
+ * // count per key in column 0, the counter is in column 1
+ * builder.keyColumns(0).combiner(RowCombiner.sum(1))
+ * }</pre>
+ *
+ * @author gear-wheel
+ */
+@FunctionalInterface
+public interface RowCombiner {
+
+    /**
+     * fold a row into the accumulated row in place
+     * @param accumulator accumulated row, the first row of the equal rows at first
+     * @param row next equal row, must not be kept
+     */
+    void combine(long[] accumulator, long[] row);
+
+    /**
+     * keep the first row met, the others are dropped. sort by all columns to drop exact duplicates
+     * @return combiner
+     */
+    static RowCombiner keepFirst() {
+        return (accumulator, row) -> { };
+    }
+
+    /**
+     * @param columns columns summed up, the others are kept from the first row
+     * @return combiner
+     */
+    static RowCombiner sum(int... columns) {
+        final int[] cols = columns.clone();
+        return (accumulator, row) -> {
+            for (int c : cols) {
+                accumulator[c] += row[c];
+            }
+        };
+    }
+
+    /**
+     * @param columns columns of the signed maximum, the others are kept from the first row
+     * @return combiner
+     */
+    static RowCombiner max(int... columns) {
+        final int[] cols = columns.clone();
+        return (accumulator, row) -> {
+            for (int c : cols) {
+                accumulator[c] = Math.max(accumulator[c], row[c]);
+            }
+        };
+    }
+
+    /**
+     * @param columns columns of the signed minimum, the others are kept from the first row
+     * @return combiner
+     */
+    static RowCombiner min(int... columns) {
+        final int[] cols = columns.clone();
+        return (accumulator, row) -> {
+            for (int c : cols) {
+                accumulator[c] = Math.min(accumulator[c], row[c]);
+            }
+        };
+    }
+}
@@ -2,57 +2,303 @@ package com.gearwheel.externalsort;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.nio.ByteBuffer;
-import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
 import java.util.function.Function;
 
 /**
+ * A segment file, written from its start and read back
+ * <p>
+ *     how bytes get to and from the file depends on the {@link IoBackend}, see {@link MappedSegment} and {@link ChannelSegment}.
+ *     a finished segment can be {@link #release() released} to free its mapping or buffers, they are taken again on the next access.
+ *     readers sharing a segment with other threads {@link #hold() hold} it, it is not released nor closed while held,
+ *     the last holder to {@link #letGo(boolean) let go} does it
+ * </p>
  *
  * @author gear-wheel
  * @date 2024-07-15 10:42
  */
-class Segment {
-    private final FileChannel channel;
-    final MappedByteBuffer bb;
+abstract class Segment {
+    /** fill position at the last force */
+    private int forced;
     final File file;
+    /** readers holding the segment, guarded by this */
+    private int holders;
+    /** release asked while held, done by the last holder */
+    private boolean releasePending;
 
 
-    Segment(File file, FileChannel channel, MappedByteBuffer bb) {
+    Segment(File file) {
         this.file = file;
-        this.channel = channel;
-        this.bb = bb;
     }
 
-    public void close() throws IOException {
-        closeDirectBuffer(bb);
-        channel.close();
+    /**
+     * room to put the next rows or block into
+     * @param bytes bytes put, no more than that
+     * @return buffer positioned where the bytes go, null if the segment can't take them
+     */
+    abstract ByteBuffer writable(int bytes);
+
+    abstract int position();
+
+    /**
+     * @return bytes that can still be put
+     */
+    abstract int room();
+
+    /**
+     * @return true if mapped or holding buffers, false if released
+     */
+    abstract boolean isOpen();
+
+    /**
+     * write what is staged to the file, nothing to do for a mapping
+     */
+    void flush() {
+    }
+
+    /**
+     * sequential read of {@code [from, to)}, the bounds are row or block starts.
+     * the segment is not released when the input is closed
+     * @param from first byte
+     * @param to end byte
+     * @return input
+     */
+    abstract Input input(int from, int to);
+
+    /**
+     * positional read, no further than the fill position
+     * @param offset offset of the first byte read
+     * @param dst filled up to its limit, its limit is kept
+     */
+    abstract void readAt(int offset, ByteBuffer dst);
+
+    /**
+     * unmap or free the buffers, the fill position is kept. deferred to the last holder if held
+     */
+    final synchronized void release() {
+        if (holders > 0) {
+            releasePending = true;
+            return;
+        }
+        doRelease();
+    }
+
+    /**
+     * same as {@link #release()}, nothing is written after
+     */
+    public final void close() throws IOException {
+        release();
+    }
+
+    /**
+     * unmap or free the buffers, called with the monitor of the segment held
+     */
+    abstract void doRelease();
+
+    /**
+     * hold the segment while reading it, it's not released until let go
+     * @return true if it was open, a reader that opened it should release it when letting go
+     */
+    final synchronized boolean hold() {
+        holders++;
+        return isOpen();
+    }
+
+    /**
+     * let go of a held segment
+     * @param release release the segment, once no other reader holds it
+     */
+    final synchronized void letGo(boolean release) {
+        if (holders <= 0) {
+            throw new IllegalStateException("segment " + file + " is not held");
+        }
+        holders--;
+        if (release) {
+            releasePending = true;
+        }
+        if (holders == 0 && releasePending) {
+            releasePending = false;
+            doRelease();
+        }
+    }
+
+    /**
+     * force the written content, the segment may be released
+     */
+    abstract void forceContent();
+
+    /**
+     * @param target renamed file
+     * @return a released segment of the same state at the target
+     */
+    abstract Segment renamed(File target);
+
+    /**
+     * release and truncate the file to the fill position, nothing is written to a sealed segment anymore
+     */
+    void seal() {
+        release();
+        int position = position();
+        if (file.length() > position) {
+            try (FileChannel fileChannel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE)) {
+                fileChannel.truncate(position);
+            }
+            catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+    /**
+     * rename the file of a released segment
+     * @param target new file
+     * @return the segment of the new file, still released
+     */
+    Segment renameTo(File target) {
+        if (isOpen()) {
+            throw new IllegalStateException("segment " + file + " should be released before renamed");
+        }
+        if (!file.renameTo(target)) {
+            throw new IllegalStateException("can't rename " + file + " to " + target);
+        }
+        Segment segment = renamed(target);
+        segment.forced = forced;
+        return segment;
+    }
+
+    /**
+     * @return true if written since the last {@link #force()}
+     */
+    boolean isDirty() {
+        return position() != forced;
+    }
+
+    /**
+     * force the written content if dirty, a released segment is synced through its file
+     */
+    void force() {
+        if (!isDirty()) {
+            return;
+        }
+        forceContent();
+        forced = position();
+    }
+
+    /**
+     * the content of a new or loaded segment counts as forced
+     * @param position fill position
+     */
+    void forced(int position) {
+        this.forced = position;
+    }
+
+    static void forceFile(File file) {
+        try (FileChannel fileChannel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE)) {
+            fileChannel.force(false);
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
     }
 
     public <T> BufferedSegmentReader<T> bufferedReader(Function<ByteBuffer, T> reader) {
         return new BufferedSegmentReader<>(this, reader);
     }
 
+    /**
+     * bytes of a segment one buffer at a time, every buffer holds whole rows or blocks
+     */
+    abstract static class Input implements AutoCloseable {
+
+        /**
+         * @return false if everything was read
+         */
+        abstract boolean next();
+
+        /**
+         * @return bytes read by the last {@link #next()}, between position and limit
+         */
+        abstract ByteBuffer buffer();
+
+        @Override
+        public void close() {
+        }
+    }
+
+    /**
+     * reader of one or more segments in order
+     * <p>
+     *     segments are read one at a time and released once read through
+     * </p>
+     */
     static class BufferedSegmentReader<T> {
 
-        private final ByteBuffer byteBuffer;
+        private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+        private final Iterator<Segment> segments;
+
+        private Segment segment;
+
+        private Input input;
+
+        private ByteBuffer byteBuffer;
 
         private T buffer;
 
         private final Function<ByteBuffer, T> reader;
 
         public BufferedSegmentReader(Segment segment, Function<ByteBuffer, T> reader) {
-            byteBuffer = segment.bb.asReadOnlyBuffer();
+            this(Collections.singletonList(segment), reader);
+        }
+
+        BufferedSegmentReader(List<Segment> segments, Function<ByteBuffer, T> reader) {
+            this.segments = segments.iterator();
+            this.reader = reader;
+            this.byteBuffer = EMPTY;
+        }
+
+        /**
+         * @param byteBuffer content between position and limit is read
+         * @param reader element reader
+         */
+        BufferedSegmentReader(ByteBuffer byteBuffer, Function<ByteBuffer, T> reader) {
+            this.segments = Collections.emptyIterator();
+            this.byteBuffer = byteBuffer;
+            this.reader = reader;
+        }
+
+        /**
+         * @param input bytes read, closed once the reader returns null or the input ends
+         * @param reader element reader
+         */
+        BufferedSegmentReader(Input input, Function<ByteBuffer, T> reader) {
+            this.segments = Collections.emptyIterator();
+            this.input = input;
+            this.byteBuffer = EMPTY;
             this.reader = reader;
-            byteBuffer.flip();
         }
 
         public void loadNewElement() {
-            if (!byteBuffer.hasRemaining()) {
-                buffer  = null;
+            while (!byteBuffer.hasRemaining()) {
+                if (input != null && input.next()) {
+                    byteBuffer = input.buffer();
+                }
+                else if (segments.hasNext()) {
+                    openNextSegment();
+                }
+                else {
+                    break;
+                }
             }
-            else {
-                buffer = reader.apply(byteBuffer);
+            buffer = byteBuffer.hasRemaining() ? reader.apply(byteBuffer) : null;
+            if (buffer == null) {
+                releaseSegment();
             }
         }
 
@@ -60,6 +306,24 @@ class Segment {
             return buffer;
         }
 
+        private void openNextSegment() {
+            releaseSegment();
+            segment = segments.next();
+            input = segment.input(0, segment.position());
+        }
+
+        private void releaseSegment() {
+            byteBuffer = EMPTY;
+            if (input != null) {
+                input.close();
+                input = null;
+            }
+            if (segment != null) {
+                segment.release();
+                segment = null;
+            }
+        }
+
     }
 
     public static void closeDirectBuffer(ByteBuffer cb) {
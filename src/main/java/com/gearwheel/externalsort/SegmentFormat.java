@@ -0,0 +1,35 @@
+package com.gearwheel.externalsort;
+
+/**
+ * On-disk format of run and output segments
+ *
+ * @author gear-wheel
+ */
+public enum SegmentFormat {
+
+    /**
+     * every value as a plain 8 byte long
+     */
+    RAW(0),
+
+    /**
+     * blocks of rows with a header, every value is zigzag varint encoded as the delta to the same column of the previous row.
+     * a block that would not get smaller is stored raw
+     */
+    DELTA_VARINT(1);
+
+    final int code;
+
+    SegmentFormat(int code) {
+        this.code = code;
+    }
+
+    static SegmentFormat of(int code) {
+        for (SegmentFormat format : values()) {
+            if (format.code == code) {
+                return format;
+            }
+        }
+        throw new IllegalStateException("unknown segment format " + code);
+    }
+}
@@ -0,0 +1,210 @@
+package com.gearwheel.externalsort;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The {@code .idx} file of a storage, the fill position of every segment
+ * <p>
+ *     an int magic, an int version, the int format code, the int columns and the long segment count,
+ *     followed by one long position per segment. the file grows with the segments, and only changed entries are written.
+ *     the first version, int positions ended by a zero with an optional negative format code first, is still read
+ * </p>
+ *
+ * @author gear-wheel
+ */
+final class SegmentIndex implements AutoCloseable {
+
+    static final int MAGIC = 0x45534958;
+    static final int VERSION = 1;
+    private static final int HEADER_BYTES = 4 * Integer.BYTES + Long.BYTES;
+    private static final int COUNT_OFFSET = 4 * Integer.BYTES;
+
+    final File file;
+    private FileChannel channel;
+
+    private SegmentFormat format = SegmentFormat.RAW;
+    private int columns;
+    /** positions as in the file */
+    private long[] positions = new long[16];
+    private int size;
+    /** the header is rewritten on the next write */
+    private boolean headerDirty = true;
+    /** read from a file of the first version, every entry is rewritten on the next write */
+    private boolean legacy;
+
+    private final ByteBuffer scratch = ByteBuffer.allocate(HEADER_BYTES);
+
+    SegmentIndex(File file) {
+        this.file = file;
+        try {
+            this.channel = FileChannel.open(file.toPath(),
+                    StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            if (channel.size() > 0) {
+                read();
+            }
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private void read() throws IOException {
+        ByteBuffer bb = ByteBuffer.allocate((int) Math.min(channel.size(), Integer.MAX_VALUE));
+        while (bb.hasRemaining() && channel.read(bb, bb.position()) >= 0) {
+            // read all
+        }
+        bb.flip();
+        if (bb.remaining() >= HEADER_BYTES && bb.getInt(0) == MAGIC) {
+            int version = bb.getInt(Integer.BYTES);
+            if (version != VERSION) {
+                throw new IllegalStateException("idx " + file + " is of unknown version " + version);
+            }
+            format = SegmentFormat.of(bb.getInt(2 * Integer.BYTES));
+            columns = bb.getInt(3 * Integer.BYTES);
+            long count = bb.getLong(COUNT_OFFSET);
+            positions = new long[(int) Math.max(16, count)];
+            bb.position(HEADER_BYTES);
+            for (int i = 0; i < count; i++) {
+                positions[i] = bb.getLong();
+            }
+            size = (int) count;
+            headerDirty = false;
+            return;
+        }
+
+        // first version
+        List<Long> list = new ArrayList<>();
+        int idx = bb.remaining() >= Integer.BYTES ? bb.getInt() : 0;
+        if (idx < 0) {
+            format = SegmentFormat.of(-idx);
+            idx = bb.remaining() >= Integer.BYTES ? bb.getInt() : 0;
+        }
+        while (idx != 0) {
+            list.add((long) idx);
+            idx = bb.remaining() >= Integer.BYTES ? bb.getInt() : 0;
+        }
+        positions = Arrays.copyOf(list.stream().mapToLong(Long::longValue).toArray(), Math.max(16, list.size()));
+        size = list.size();
+        legacy = true;
+    }
+
+    SegmentFormat format() {
+        return format;
+    }
+
+    /**
+     * @return columns written with the idx, 0 if unknown
+     */
+    int columns() {
+        return columns;
+    }
+
+    int size() {
+        return size;
+    }
+
+    long position(int segment) {
+        return positions[segment];
+    }
+
+    List<Long> positions() {
+        List<Long> list = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            list.add(positions[i]);
+        }
+        return list;
+    }
+
+    /**
+     * write the entries of segments moved since the last write
+     * @param format format of the storage
+     * @param columns columns per row
+     * @param segments all segments of the storage
+     */
+    void write(SegmentFormat format, int columns, List<Segment> segments) {
+        try {
+            if (legacy || format != this.format || columns != this.columns || segments.size() != size) {
+                headerDirty = true;
+            }
+            if (segments.size() > positions.length) {
+                positions = Arrays.copyOf(positions, Math.max(segments.size(), positions.length * 2));
+            }
+            for (int i = 0; i < segments.size(); i++) {
+                long position = segments.get(i).position();
+                if (i >= size || positions[i] != position || legacy) {
+                    scratch.clear();
+                    scratch.putLong(position).flip();
+                    write(scratch, HEADER_BYTES + (long) i * Long.BYTES);
+                    positions[i] = position;
+                }
+            }
+            if (headerDirty) {
+                this.format = format;
+                this.columns = columns;
+                this.size = segments.size();
+                scratch.clear();
+                scratch.putInt(MAGIC).putInt(VERSION).putInt(format.code).putInt(columns).putLong(size).flip();
+                write(scratch, 0L);
+                headerDirty = false;
+                legacy = false;
+            }
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private void write(ByteBuffer bb, long position) throws IOException {
+        while (bb.hasRemaining()) {
+            position += channel.write(bb, position);
+        }
+    }
+
+    /**
+     * forget every entry, the file is written from scratch on the next write
+     */
+    void truncate() {
+        try {
+            channel.truncate(0L);
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        size = 0;
+        headerDirty = true;
+        legacy = false;
+    }
+
+    void force() {
+        try {
+            channel.force(false);
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (channel != null) {
+            channel.close();
+            channel = null;
+        }
+    }
+
+    void delete() {
+        try {
+            close();
+        }
+        catch (IOException ignore) { }
+        file.delete();
+    }
+}
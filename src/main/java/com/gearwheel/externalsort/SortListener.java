@@ -0,0 +1,46 @@
+package com.gearwheel.externalsort;
+
+/**
+ * Callbacks of the phases of a sorter, every method does nothing by default
+ * <p>
+ *     runs are reported on the spill threads if spilled asynchronously, so a listener should be thread safe and quick
+ * </p>
+ * <pre>{@code
+ * builder.listener(new SortListener() {
+ *     public void sortFinished(SortMetrics metrics) {
+ *         log.info("{}", metrics);
+ *     }
+ * })
+ * }</pre>
+ *
+ * @author gear-wheel
+ */
+public interface SortListener {
+
+    /**
+     * a run was sorted and written to the input storage
+     * @param rows rows of the run, after combining
+     * @param bytes bytes of the run
+     * @param sortNanos nanos of sorting and combining
+     * @param flushNanos nanos of writing and committing
+     */
+    default void runWritten(int rows, long bytes, long sortNanos, long flushNanos) {
+    }
+
+    /**
+     * an intermediate or the final merge is done
+     * @param fanIn runs read
+     * @param bytesRead bytes of the runs read
+     * @param bytesWritten bytes written
+     * @param nanos nanos of the merge
+     */
+    default void mergeFinished(int fanIn, long bytesRead, long bytesWritten, long nanos) {
+    }
+
+    /**
+     * the out files are written
+     * @param metrics counters of the whole sort
+     */
+    default void sortFinished(SortMetrics metrics) {
+    }
+}
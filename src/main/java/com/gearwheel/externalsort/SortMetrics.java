@@ -0,0 +1,181 @@
+package com.gearwheel.externalsort;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Snapshot of the counters of one sorter
+ * <p>
+ *     times are summed over all threads, so with async spill or a parallel merge they may exceed the wall time.
+ *     bytes are the bytes in the segments, encoded if the segment format is not raw
+ * </p>
+ *
+ * @author gear-wheel
+ */
+public final class SortMetrics {
+
+    private final long rowsAppended;
+    private final long runsCreated;
+    private final long bytesSpilled;
+    private final long bytesMergeRead;
+    private final long bytesMergeWritten;
+    private final long rowsSorted;
+    private final long sortNanos;
+    private final long flushNanos;
+    private final long mergeNanos;
+    private final long comparisons;
+    private final int merges;
+    private final int maxMergeFanIn;
+    private final int peakBufferRows;
+
+    SortMetrics(long rowsAppended, long runsCreated, long bytesSpilled, long bytesMergeRead, long bytesMergeWritten,
+                long rowsSorted, long sortNanos, long flushNanos, long mergeNanos, long comparisons,
+                int merges, int maxMergeFanIn, int peakBufferRows) {
+        this.rowsAppended = rowsAppended;
+        this.runsCreated = runsCreated;
+        this.bytesSpilled = bytesSpilled;
+        this.bytesMergeRead = bytesMergeRead;
+        this.bytesMergeWritten = bytesMergeWritten;
+        this.rowsSorted = rowsSorted;
+        this.sortNanos = sortNanos;
+        this.flushNanos = flushNanos;
+        this.mergeNanos = mergeNanos;
+        this.comparisons = comparisons;
+        this.merges = merges;
+        this.maxMergeFanIn = maxMergeFanIn;
+        this.peakBufferRows = peakBufferRows;
+    }
+
+    /**
+     * @return rows appended and handed to a run or the top-k selection, rows still in the buffer are not counted
+     */
+    public long getRowsAppended() {
+        return rowsAppended;
+    }
+
+    /**
+     * @return runs written to the input storage
+     */
+    public long getRunsCreated() {
+        return runsCreated;
+    }
+
+    /**
+     * @return bytes of all runs in the input storage
+     */
+    public long getBytesSpilled() {
+        return bytesSpilled;
+    }
+
+    /**
+     * @return bytes of the runs read by all merges, intermediate runs are read again
+     */
+    public long getBytesMergeRead() {
+        return bytesMergeRead;
+    }
+
+    /**
+     * @return bytes written by all merges, the out files included
+     */
+    public long getBytesMergeWritten() {
+        return bytesMergeWritten;
+    }
+
+    /**
+     * @return rows sorted in memory, by the radix sort or the comparator
+     */
+    public long getRowsSorted() {
+        return rowsSorted;
+    }
+
+    /**
+     * @return nanos of in memory sorting and combining of run buffers
+     */
+    public long getSortNanos() {
+        return sortNanos;
+    }
+
+    /**
+     * @return nanos of writing and committing run buffers and the top-k rows
+     */
+    public long getFlushNanos() {
+        return flushNanos;
+    }
+
+    /**
+     * @return nanos of all merges, their writes and commits included
+     */
+    public long getMergeNanos() {
+        return mergeNanos;
+    }
+
+    /**
+     * @return comparator calls, -1 if not counted, see {@link FastLongBaseExternalSort.Builder#countComparisons()}
+     */
+    public long getComparisons() {
+        return comparisons;
+    }
+
+    /**
+     * @return intermediate merges and the final merge
+     */
+    public int getMerges() {
+        return merges;
+    }
+
+    /**
+     * @return largest number of runs read by one merge
+     */
+    public int getMaxMergeFanIn() {
+        return maxMergeFanIn;
+    }
+
+    /**
+     * @return most rows held by one buffer when it was sorted
+     */
+    public int getPeakBufferRows() {
+        return peakBufferRows;
+    }
+
+    /**
+     * @return rows sorted per second of sort time, 0 if nothing was sorted
+     */
+    public double sortRowsPerSecond() {
+        return perSecond(rowsSorted, sortNanos);
+    }
+
+    /**
+     * @return bytes spilled per second of flush time, 0 if nothing was spilled
+     */
+    public double flushBytesPerSecond() {
+        return perSecond(bytesSpilled, flushNanos);
+    }
+
+    /**
+     * @return bytes read per second of merge time, 0 if nothing was merged
+     */
+    public double mergeBytesPerSecond() {
+        return perSecond(bytesMergeRead, mergeNanos);
+    }
+
+    private static double perSecond(long amount, long nanos) {
+        return nanos <= 0 ? 0d : amount * (double) TimeUnit.SECONDS.toNanos(1) / nanos;
+    }
+
+    @Override
+    public String toString() {
+        return "SortMetrics{" +
+                "rowsAppended=" + rowsAppended +
+                ", runsCreated=" + runsCreated +
+                ", bytesSpilled=" + ExternalSortUtils.format(bytesSpilled) +
+                ", bytesMergeRead=" + ExternalSortUtils.format(bytesMergeRead) +
+                ", bytesMergeWritten=" + ExternalSortUtils.format(bytesMergeWritten) +
+                ", sortMillis=" + TimeUnit.NANOSECONDS.toMillis(sortNanos) +
+                ", flushMillis=" + TimeUnit.NANOSECONDS.toMillis(flushNanos) +
+                ", mergeMillis=" + TimeUnit.NANOSECONDS.toMillis(mergeNanos) +
+                ", comparisons=" + comparisons +
+                ", merges=" + merges +
+                ", maxMergeFanIn=" + maxMergeFanIn +
+                ", peakBufferRows=" + peakBufferRows +
+                '}';
+    }
+}
@@ -0,0 +1,42 @@
+package com.gearwheel.externalsort;
+
+/**
+ * Counters of a sorter over JMX, registered by {@link FastLongBaseExternalSort.Builder#jmx(String)}.
+ * see {@link SortMetrics} for the meaning of every attribute
+ *
+ * @author gear-wheel
+ */
+public interface SortMetricsMXBean {
+
+    long getRowsAppended();
+
+    long getRunsCreated();
+
+    long getBytesSpilled();
+
+    long getBytesMergeRead();
+
+    long getBytesMergeWritten();
+
+    long getRowsSorted();
+
+    long getSortNanos();
+
+    long getFlushNanos();
+
+    long getMergeNanos();
+
+    long getComparisons();
+
+    int getMerges();
+
+    int getMaxMergeFanIn();
+
+    int getPeakBufferRows();
+
+    double getSortRowsPerSecond();
+
+    double getFlushBytesPerSecond();
+
+    double getMergeBytesPerSecond();
+}
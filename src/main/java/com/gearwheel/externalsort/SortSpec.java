@@ -0,0 +1,141 @@
+package com.gearwheel.externalsort;
+
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * Key columns of a sort, each ascending or descending and signed or unsigned
+ * <p>
+ *     every key is normalized by a xor mask so that it orders as an unsigned long: the sign bit is flipped if signed,
+ *     all bits if descending. the radix sort, the merge and the fence index all compare normalized keys,
+ *     the merge compares the normalized first key of the rows before their other keys
+ * </p>
+ * <pre>{@code
+ * SortSpec spec = SortSpec.builder()
+ *         .ascending(0)
+ *         .descending(2)
+ *         .unsignedAscending(1)
+ *         .build();
+ * }</pre>
+ *
+ * @author gear-wheel
+ */
+public final class SortSpec {
+
+    private final int[] columns;
+    private final long[] masks;
+
+    private SortSpec(int[] columns, long[] masks) {
+        this.columns = columns;
+        this.masks = masks;
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    /**
+     * @return key column indices, most significant first
+     */
+    public int[] columns() {
+        return columns.clone();
+    }
+
+    long[] masks() {
+        return masks.clone();
+    }
+
+    /**
+     * the comparator of the same order, for sorts or checks outside the sorter
+     * @return comparator of rows
+     */
+    public Comparator<long[]> comparator() {
+        return new KeyComparator(columns, masks);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("SortSpec{");
+        for (int i = 0; i < columns.length; i++) {
+            if (i > 0) {
+                sb.append(", ");
+            }
+            // a descending mask has all bits flipped, the sign bit tells signed from unsigned
+            boolean descending = (masks[i] & 1L) != 0;
+            boolean signed = masks[i] < 0 != descending;
+            sb.append(columns[i])
+                    .append(signed ? "" : " unsigned")
+                    .append(descending ? " desc" : " asc");
+        }
+        return sb.append('}').toString();
+    }
+
+    public static final class Builder {
+        private int[] columns = new int[4];
+        private long[] masks = new long[4];
+        private int size;
+
+        private Builder() {
+        }
+
+        /**
+         * @param column key column index in head order, less significant than the keys before
+         * @return this
+         */
+        public Builder ascending(int column) {
+            return key(column, RadixSorter.SIGNED);
+        }
+
+        /**
+         * @param column key column index in head order, less significant than the keys before
+         * @return this
+         */
+        public Builder descending(int column) {
+            return key(column, ~RadixSorter.SIGNED);
+        }
+
+        /**
+         * the values compare as unsigned longs, negative values come after every positive one
+         * @param column key column index in head order, less significant than the keys before
+         * @return this
+         */
+        public Builder unsignedAscending(int column) {
+            return key(column, RadixSorter.UNSIGNED);
+        }
+
+        /**
+         * the values compare as unsigned longs, negative values come before every positive one
+         * @param column key column index in head order, less significant than the keys before
+         * @return this
+         */
+        public Builder unsignedDescending(int column) {
+            return key(column, ~RadixSorter.UNSIGNED);
+        }
+
+        private Builder key(int column, long mask) {
+            if (column < 0) {
+                throw new IllegalArgumentException("key column should not be negative: " + column);
+            }
+            for (int i = 0; i < size; i++) {
+                if (columns[i] == column) {
+                    throw new IllegalArgumentException("key column " + column + " is used twice");
+                }
+            }
+            if (size == columns.length) {
+                columns = Arrays.copyOf(columns, size * 2);
+                masks = Arrays.copyOf(masks, size * 2);
+            }
+            columns[size] = column;
+            masks[size] = mask;
+            size++;
+            return this;
+        }
+
+        public SortSpec build() {
+            if (size == 0) {
+                throw new IllegalArgumentException("a sort spec needs at least one key column");
+            }
+            return new SortSpec(Arrays.copyOf(columns, size), Arrays.copyOf(masks, size));
+        }
+    }
+}
@@ -0,0 +1,218 @@
+package com.gearwheel.externalsort;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+import java.util.function.Consumer;
+import java.util.function.ToLongFunction;
+
+/**
+ * K-way merge of sorted files written by other sorters, e.g. one per process
+ * <p>
+ *     the rows are read straight from the segments of every directory by one loser tree and never sorted again,
+ *     a merge costs one sequential pass over the rows. equal rows keep the order of the directories.
+ *     every directory is opened read only and closed once merged.
+ *     a merge into a target dir writes under a temporary prefix, the files are renamed to the sorted file
+ *     of the target only once every row is merged, a failed merge keeps the sorted file already there.
+ *     the target is written in the format of the directories, they should all have the same one
+ * </p>
+ *
+ * @author gear-wheel
+ */
+final class SortedFileMerger {
+
+    private static final Logger log = LoggerFactory.getLogger(SortedFileMerger.class);
+
+    private static final String PREFIX = "out";
+    private static final String MERGING_PREFIX = "merging";
+
+    private SortedFileMerger() {
+    }
+
+    /**
+     * @param directories sorted dirs
+     * @param headSize head size
+     * @param comparator order of every dir
+     * @param action consumer of the rows in order, the array is reused for the next row
+     * @return rows merged
+     */
+    static long merge(List<File> directories, int headSize, Comparator<long[]> comparator, Consumer<long[]> action) {
+        Objects.requireNonNull(comparator, "comparator");
+        Objects.requireNonNull(action, "action");
+        final List<LongBaseStorage> storages = open(directories, headSize);
+        try {
+            return merge(storages, comparator, action);
+        }
+        finally {
+            close(storages);
+        }
+    }
+
+    /**
+     * @param directories sorted dirs
+     * @param headSize head size
+     * @param comparator order of every dir
+     * @param spec spec of the comparator for the fence index, null to write none
+     * @param target target dir, sorted files already there are replaced
+     * @return rows merged
+     */
+    static long merge(List<File> directories, int headSize, Comparator<long[]> comparator, SortSpec spec, File target) {
+        Objects.requireNonNull(comparator, "comparator");
+        checkTarget(directories, target);
+        final List<LongBaseStorage> storages = open(directories, headSize);
+        try {
+            long bytes = 0;
+            for (LongBaseStorage storage : storages) {
+                bytes += storage.getWrittenSize();
+            }
+            final int segmentSizeBytes = (int) Math.max(Math.min(bytes, LongBaseStorage.MAX_SEGMENT_BYTES), headSize * Long.BYTES);
+            final SegmentFormat format = format(directories, storages);
+            final LongBaseStorage merging = new LongBaseStorage(target, MERGING_PREFIX, segmentSizeBytes, false, format, headSize);
+            try {
+                final long start = System.nanoTime();
+                final long rows = merge(storages, comparator, row -> merging.putRow(row, 0));
+                merging.commit();
+                replace(merging, target, spec);
+                log.info("merged {} rows of {} sorted files in {} ms", rows, storages.size(), (System.nanoTime() - start) / 1_000_000);
+                return rows;
+            }
+            catch (RuntimeException e) {
+                merging.clear();
+                throw e;
+            }
+            finally {
+                close(merging);
+            }
+        }
+        finally {
+            close(storages);
+        }
+    }
+
+    /**
+     * rename the merged segments to the sorted file of the target, the one already there is deleted first
+     * @param merging storage of the merged rows, committed
+     * @param target target dir
+     * @param spec spec of the fence index, null to write none
+     */
+    private static void replace(LongBaseStorage merging, File target, SortSpec spec) {
+        FenceIndex.delete(target, PREFIX);
+        final LongBaseStorage out = new LongBaseStorage(target, PREFIX, 0, false, merging.format, merging.columns);
+        try {
+            out.durability(Durability.ON_CLOSE);
+            out.adopt(merging, new ArrayList<>(merging.segments));
+            out.commit();
+            merging.clear();
+            if (spec != null) {
+                FenceIndex.write(out, spec.columns()[0], spec.masks()[0], true);
+            }
+        }
+        finally {
+            close(out);
+        }
+    }
+
+    /**
+     * @return format shared by every storage
+     */
+    private static SegmentFormat format(List<File> directories, List<LongBaseStorage> storages) {
+        final SegmentFormat format = storages.get(0).format;
+        for (int i = 1; i < storages.size(); i++) {
+            if (storages.get(i).format != format) {
+                throw new IllegalArgumentException("sorted file of " + directories.get(i) + " is " + storages.get(i).format
+                        + ", not " + format + " like " + directories.get(0));
+            }
+        }
+        return format;
+    }
+
+    private static long merge(List<LongBaseStorage> storages, Comparator<long[]> comparator, Consumer<long[]> action) {
+        final List<Segment.BufferedSegmentReader<long[]>> readers = new ArrayList<>(storages.size());
+        for (LongBaseStorage storage : storages) {
+            List<Segment> segments = new ArrayList<>(storage.segments.size());
+            for (Segment segment : storage.segments) {
+                if (segment.position() > 0) {
+                    segments.add(segment);
+                }
+            }
+            Segment.BufferedSegmentReader<long[]> reader = new Segment.BufferedSegmentReader<>(segments, storage.lineReader());
+            reader.loadNewElement();
+            readers.add(reader);
+        }
+        // normalized first keys are compared before the comparator if it's a key comparator
+        final ToLongFunction<long[]> prefix = comparator instanceof KeyComparator ? ((KeyComparator) comparator)::prefix : null;
+        final LoserTree<long[]> tree = new LoserTree<>(readers, comparator, prefix);
+
+        long rows = 0;
+        while (!tree.isEmpty()) {
+            action.accept(tree.peek());
+            tree.next();
+            rows++;
+        }
+        return rows;
+    }
+
+    private static List<LongBaseStorage> open(List<File> directories, int headSize) {
+        if (directories == null || directories.isEmpty()) {
+            throw new IllegalArgumentException("no sorted directory to merge");
+        }
+        final List<LongBaseStorage> storages = new ArrayList<>(directories.size());
+        try {
+            for (File directory : directories) {
+                if (directory == null || !new File(directory, PREFIX + ".idx").isFile()) {
+                    throw new IllegalArgumentException("no sorted file in " + directory);
+                }
+                storages.add(new LongBaseStorage(directory, PREFIX, 0, true, SegmentFormat.RAW, headSize));
+            }
+        }
+        catch (RuntimeException e) {
+            close(storages);
+            throw e;
+        }
+        return storages;
+    }
+
+    private static void checkTarget(List<File> directories, File target) {
+        if (target == null || !target.isDirectory()) {
+            throw new IllegalArgumentException(" directory is illegal " + target);
+        }
+        final Set<File> sources = new HashSet<>();
+        try {
+            for (File directory : directories) {
+                if (directory != null) {
+                    sources.add(directory.getCanonicalFile());
+                }
+            }
+            if (sources.contains(target.getCanonicalFile())) {
+                throw new IllegalArgumentException("target " + target + " is one of the sorted directories");
+            }
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static void close(List<LongBaseStorage> storages) {
+        for (LongBaseStorage storage : storages) {
+            close(storage);
+        }
+    }
+
+    private static void close(LongBaseStorage storage) {
+        try {
+            storage.close();
+        }
+        catch (Exception e) {
+            throw new IllegalStateException("can't close storage " + storage.prefix, e);
+        }
+    }
+}
@@ -0,0 +1,291 @@
+package com.gearwheel.externalsort;
+
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.function.Function;
+
+/**
+ * Pull style cursor over sorted rows, reading straight from the segments
+ * <p>
+ *     nothing is allocated per row, the current row lives in one reused array.
+ *     raw segments are read in bulk, other formats are decoded row by row.
+ *     stop whenever you like, but close the cursor.
+ *     a cursor of {@code seek} or {@code range} starts at a fence of the sorted output and ends after the last key in range
+ * </p>
+ * <pre>{@code
+ * try (SortedRowCursor cursor = externalSort.cursor()) {
+ *     while (cursor.next()) {
+ *         long key = cursor.getLong(1);
+ *     }
+ * }
+ * }</pre>
+ *
+ * @author gear-wheel
+ */
+public final class SortedRowCursor implements AutoCloseable {
+
+    private static final LongBuffer EMPTY = LongBuffer.allocate(0);
+    private static final ByteBuffer EMPTY_BYTES = ByteBuffer.allocate(0);
+
+    private final LongBaseStorage storage;
+    private final boolean ownStorage;
+    private final int columns;
+    private final List<Long> positions;
+    private final long[] row;
+    private final boolean raw;
+
+    private int segmentIdx = -1;
+    /** the current segment is held, released when let go if this cursor opened it */
+    private boolean holdsSegment;
+    private boolean releaseSegment;
+    private Segment.Input input;
+    private LongBuffer longs = EMPTY;
+    /** encoded segment and its decoder if not raw */
+    private ByteBuffer bytes = EMPTY_BYTES;
+    private Function<ByteBuffer, long[]> decoder;
+    private boolean hasRow;
+    private boolean closed;
+
+    /** byte offset the first segment is read from */
+    private int startOffset;
+    /** key range, normalized by the mask, only if bounded */
+    private final boolean bounded;
+    private final int keyColumn;
+    private final long mask;
+    private final long lo;
+    private final long hi;
+    /** a key after the range was met */
+    private boolean done;
+
+    /**
+     * @param storage storage to read
+     * @param columns columns per row
+     * @param ownStorage close the storage with the cursor
+     */
+    SortedRowCursor(LongBaseStorage storage, int columns, boolean ownStorage) {
+        if (columns <= 0) {
+            throw new IllegalArgumentException("columns should be positive");
+        }
+        this.storage = storage;
+        this.ownStorage = ownStorage;
+        this.columns = columns;
+        this.positions = storage.readIdxList();
+        this.row = new long[columns];
+        this.raw = storage.format == SegmentFormat.RAW;
+        this.bounded = false;
+        this.keyColumn = 0;
+        this.mask = 0L;
+        this.lo = 0L;
+        this.hi = -1L;
+    }
+
+    /**
+     * cursor over the rows whose key is in {@code [from, to]}
+     * @param storage storage to read
+     * @param columns columns per row
+     * @param ownStorage close the storage with the cursor
+     * @param segment segment to start at
+     * @param offset byte offset in the segment to start at, a row or block start before the first key in range
+     * @param keyColumn column of the key
+     * @param mask mask of the key column
+     * @param from first key
+     * @param to last key
+     */
+    SortedRowCursor(LongBaseStorage storage, int columns, boolean ownStorage, int segment, int offset,
+                    int keyColumn, long mask, long from, long to) {
+        if (columns <= 0) {
+            throw new IllegalArgumentException("columns should be positive");
+        }
+        this.storage = storage;
+        this.ownStorage = ownStorage;
+        this.columns = columns;
+        this.positions = storage.readIdxList();
+        this.row = new long[columns];
+        this.raw = storage.format == SegmentFormat.RAW;
+        this.segmentIdx = segment - 1;
+        this.startOffset = offset;
+        this.bounded = true;
+        this.keyColumn = keyColumn;
+        this.mask = mask;
+        this.lo = from ^ mask;
+        this.hi = to ^ mask;
+        this.done = Long.compareUnsigned(lo, hi) > 0;
+    }
+
+    public int columns() {
+        return columns;
+    }
+
+    /**
+     * move to the next row
+     * @return false if there is no more row
+     */
+    public boolean next() {
+        while (ensureRemaining()) {
+            if (raw) {
+                longs.get(row);
+            }
+            else {
+                System.arraycopy(decoder.apply(bytes), 0, row, 0, columns);
+            }
+            if (bounded) {
+                long key = row[keyColumn] ^ mask;
+                if (Long.compareUnsigned(key, lo) < 0) {
+                    continue;
+                }
+                if (Long.compareUnsigned(key, hi) > 0) {
+                    done = true;
+                    releaseCurrent();
+                    break;
+                }
+            }
+            hasRow = true;
+            return true;
+        }
+        hasRow = false;
+        return false;
+    }
+
+    /**
+     * @param column column index in head order
+     * @return value of the current row
+     */
+    public long getLong(int column) {
+        checkRow();
+        return row[column];
+    }
+
+    /**
+     * copy the current row
+     * @param dst at least {@link #columns()} long
+     */
+    public void copyTo(long[] dst) {
+        copyTo(dst, 0);
+    }
+
+    /**
+     * copy the current row
+     * @param dst destination
+     * @param offset offset in destination
+     */
+    public void copyTo(long[] dst, int offset) {
+        checkRow();
+        System.arraycopy(row, 0, dst, offset, columns);
+    }
+
+    /**
+     * read the following rows back to back, the current row is not included and is undefined afterwards
+     * @param dst destination
+     * @param offset offset in destination
+     * @param maxRows max rows to read
+     * @return rows read, 0 if there is no more row
+     */
+    public int read(long[] dst, int offset, int maxRows) {
+        if (maxRows < 0 || offset < 0 || offset + (long) maxRows * columns > dst.length) {
+            throw new IndexOutOfBoundsException("dst is too small for " + maxRows + " rows at " + offset);
+        }
+        hasRow = false;
+        int rows = 0;
+        if (bounded) {
+            while (rows < maxRows && next()) {
+                System.arraycopy(row, 0, dst, offset + rows * columns, columns);
+                rows++;
+            }
+            hasRow = false;
+            return rows;
+        }
+        if (!raw) {
+            while (rows < maxRows && ensureRemaining()) {
+                System.arraycopy(decoder.apply(bytes), 0, dst, offset + rows * columns, columns);
+                rows++;
+            }
+            return rows;
+        }
+        while (rows < maxRows && ensureRemaining()) {
+            int n = Math.min(maxRows - rows, longs.remaining() / columns);
+            longs.get(dst, offset + rows * columns, n * columns);
+            rows += n;
+        }
+        return rows;
+    }
+
+    private boolean ensureRemaining() {
+        if (closed) {
+            throw new IllegalStateException("cursor is closed");
+        }
+        if (done) {
+            return false;
+        }
+        while (raw ? longs.remaining() < columns : !bytes.hasRemaining()) {
+            if (input != null && input.next()) {
+                wrap(input.buffer());
+                continue;
+            }
+            if (segmentIdx + 1 >= positions.size()) {
+                releaseCurrent();
+                return false;
+            }
+            openSegment(segmentIdx + 1);
+        }
+        return true;
+    }
+
+    private void openSegment(int idx) {
+        releaseCurrent();
+        segmentIdx = idx;
+        Segment segment = storage.segments.get(idx);
+        // other cursors and streams may read the segment at once, the last one to let go releases it
+        releaseSegment = !segment.hold();
+        holdsSegment = true;
+        int limit = positions.get(idx).intValue();
+        input = segment.input(Math.min(startOffset, limit), limit);
+        startOffset = 0;
+        if (!raw) {
+            // blocks never cross segments nor buffers of the input
+            decoder = storage.lineReader();
+        }
+    }
+
+    private void wrap(ByteBuffer bb) {
+        if (raw) {
+            longs = bb.asLongBuffer();
+        }
+        else {
+            bytes = bb;
+        }
+    }
+
+    private void releaseCurrent() {
+        longs = EMPTY;
+        bytes = EMPTY_BYTES;
+        if (input != null) {
+            input.close();
+            input = null;
+        }
+        if (holdsSegment) {
+            storage.segments.get(segmentIdx).letGo(releaseSegment);
+            holdsSegment = false;
+            releaseSegment = false;
+        }
+    }
+
+    private void checkRow() {
+        if (!hasRow) {
+            throw new NoSuchElementException("no current row, call next() first");
+        }
+    }
+
+    @Override
+    public void close() throws Exception {
+        if (closed) {
+            return;
+        }
+        releaseCurrent();
+        closed = true;
+        if (ownStorage) {
+            storage.close();
+        }
+    }
+}
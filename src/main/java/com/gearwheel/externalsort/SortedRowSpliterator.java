@@ -0,0 +1,243 @@
+package com.gearwheel.externalsort;
+
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
+import java.util.List;
+import java.util.Queue;
+import java.util.Spliterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * Spliterator over sorted rows, reading straight from the segments
+ * <p>
+ *     splits on segment boundaries first, a single segment is split in halves on a row or block start,
+ *     so the splits of a parallel stream read different segments or parts of one segment at once,
+ *     each through its own input. every row is a new array. raw storages are {@link #SIZED},
+ *     the row count of encoded storages is estimated from their bytes.
+ *     a split holds the segment it reads, other readers of the segment can't release it meanwhile.
+ *     it lets go at the end of the segment, the stream lets go for the splits not read through when closed
+ * </p>
+ *
+ * @author gear-wheel
+ */
+final class SortedRowSpliterator implements Spliterator<long[]> {
+
+    /** a part of a segment is not split below this */
+    static final int MIN_SPLIT_BYTES = 64 * 1024;
+
+    private static final LongBuffer EMPTY = LongBuffer.allocate(0);
+    private static final ByteBuffer EMPTY_BYTES = ByteBuffer.allocate(0);
+
+    private final LongBaseStorage storage;
+    private final List<Long> positions;
+    /** this spliterator and every split of it */
+    private final Queue<SortedRowSpliterator> splits;
+    private final int columns;
+    private final int rowBytes;
+    private final boolean raw;
+
+    /** segment read next and the byte offset in it */
+    private int segment;
+    private int offset;
+    /** last segment and the end offset in it */
+    private final int lastSegment;
+    private final int endOffset;
+
+    private Segment.Input input;
+    /** the segment read is held, released when let go if this split opened it */
+    private boolean holdsSegment;
+    private boolean releaseSegment;
+    private LongBuffer longs = EMPTY;
+    /** encoded bytes and their decoder if not raw */
+    private ByteBuffer bytes = EMPTY_BYTES;
+    private Function<ByteBuffer, long[]> decoder;
+
+    /**
+     * all rows of a storage
+     * @param storage sorted storage
+     */
+    SortedRowSpliterator(LongBaseStorage storage) {
+        this(storage, storage.readIdxList(), new ConcurrentLinkedQueue<>(), 0, 0, -1, 0);
+    }
+
+    private SortedRowSpliterator(LongBaseStorage storage, List<Long> positions, Queue<SortedRowSpliterator> splits,
+                                 int segment, int offset, int lastSegment, int endOffset) {
+        this.storage = storage;
+        this.positions = positions;
+        this.splits = splits;
+        splits.add(this);
+        this.columns = storage.columns;
+        this.rowBytes = storage.columns * Long.BYTES;
+        this.raw = storage.format == SegmentFormat.RAW;
+        this.segment = segment;
+        this.offset = offset;
+        if (lastSegment < 0) {
+            this.lastSegment = positions.size() - 1;
+            this.endOffset = positions.isEmpty() ? 0 : limit(this.lastSegment);
+        }
+        else {
+            this.lastSegment = lastSegment;
+            this.endOffset = endOffset;
+        }
+    }
+
+    private int limit(int idx) {
+        return positions.get(idx).intValue();
+    }
+
+    @Override
+    public boolean tryAdvance(Consumer<? super long[]> action) {
+        if (!ensureRemaining()) {
+            return false;
+        }
+        action.accept(nextRow());
+        return true;
+    }
+
+    @Override
+    public void forEachRemaining(Consumer<? super long[]> action) {
+        while (ensureRemaining()) {
+            action.accept(nextRow());
+        }
+    }
+
+    private long[] nextRow() {
+        if (raw) {
+            long[] row = new long[columns];
+            longs.get(row);
+            return row;
+        }
+        return decoder.apply(bytes).clone();
+    }
+
+    private boolean ensureRemaining() {
+        while (raw ? longs.remaining() < columns : !bytes.hasRemaining()) {
+            if (input != null) {
+                if (input.next()) {
+                    wrap(input.buffer());
+                    continue;
+                }
+                letGo();
+                segment++;
+                offset = 0;
+            }
+            if (segment > lastSegment) {
+                return false;
+            }
+            final Segment current = storage.segments.get(segment);
+            releaseSegment = !current.hold();
+            holdsSegment = true;
+            input = current.input(offset, segment == lastSegment ? endOffset : limit(segment));
+            if (!raw && decoder == null) {
+                decoder = storage.lineReader();
+            }
+        }
+        return true;
+    }
+
+    /**
+     * close the input and let go of the segment read, if any
+     */
+    private void letGo() {
+        longs = EMPTY;
+        bytes = EMPTY_BYTES;
+        if (input != null) {
+            input.close();
+            input = null;
+        }
+        if (holdsSegment) {
+            storage.segments.get(segment).letGo(releaseSegment);
+            holdsSegment = false;
+            releaseSegment = false;
+        }
+    }
+
+    /**
+     * let go of the segments still held by this spliterator and its splits, once the stream is done
+     */
+    void close() {
+        for (SortedRowSpliterator split : splits) {
+            split.letGo();
+        }
+    }
+
+    private void wrap(ByteBuffer bb) {
+        if (raw) {
+            longs = bb.asLongBuffer();
+        }
+        else {
+            bytes = bb;
+        }
+    }
+
+    /**
+     * the first half of the segments, or of the rows of a single segment, is split off
+     * @return null once traversal started or if too small
+     */
+    @Override
+    public Spliterator<long[]> trySplit() {
+        if (input != null || segment > lastSegment) {
+            return null;
+        }
+        if (segment < lastSegment) {
+            int mid = (segment + lastSegment + 1) >>> 1;
+            SortedRowSpliterator prefix = new SortedRowSpliterator(storage, positions, splits, segment, offset, mid - 1, limit(mid - 1));
+            segment = mid;
+            offset = 0;
+            return prefix;
+        }
+        int split = splitOffset();
+        if (split <= offset || split >= endOffset) {
+            return null;
+        }
+        SortedRowSpliterator prefix = new SortedRowSpliterator(storage, positions, splits, segment, offset, segment, split);
+        offset = split;
+        return prefix;
+    }
+
+    /**
+     * @return the row or block start closest after the middle of the single segment left, -1 if too small
+     */
+    private int splitOffset() {
+        if (endOffset - offset < 2 * MIN_SPLIT_BYTES) {
+            return -1;
+        }
+        final int half = offset + (endOffset - offset) / 2;
+        if (raw) {
+            return half - (half - offset) % rowBytes;
+        }
+        // skip blocks by their headers up to the middle
+        final Segment current = storage.segments.get(segment);
+        final boolean release = !current.hold();
+        try {
+            final ByteBuffer header = ByteBuffer.allocate(RowBlockCodec.HEADER_BYTES);
+            int block = offset;
+            while (block < half) {
+                header.clear();
+                current.readAt(block, header);
+                block += RowBlockCodec.HEADER_BYTES + header.getInt(Integer.BYTES);
+            }
+            return block;
+        }
+        finally {
+            current.letGo(release);
+        }
+    }
+
+    @Override
+    public long estimateSize() {
+        long bytes = 0;
+        for (int s = segment; s <= lastSegment; s++) {
+            bytes += (s == lastSegment ? endOffset : limit(s)) - (s == segment ? offset : 0);
+        }
+        return bytes / rowBytes;
+    }
+
+    @Override
+    public int characteristics() {
+        int characteristics = ORDERED | NONNULL | IMMUTABLE;
+        return raw ? characteristics | SIZED | SUBSIZED : characteristics;
+    }
+}
@@ -8,17 +8,31 @@ import org.junit.Test;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import javax.management.ObjectName;
 import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.LongBuffer;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Comparator;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Random;
+import java.util.Spliterator;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.stream.Collectors;
 import java.util.stream.LongStream;
+import java.util.stream.Stream;
 
 public class FastLongBaseExternalSortTest {
 	
@@ -113,6 +127,1311 @@ public class FastLongBaseExternalSortTest {
 		}
 	}
 
+	@Test
+	public void sortAllByKeyColumns() throws Exception {
+		final String workDir = filePath("sortAllByKeyColumns");
+		final int totalBatch = 10_000;
+		final Random random = new Random(7);
+
+		Map<String, Long> map = new HashMap<>();
+		FastLongBaseExternalSort<String> externalSort = FastLongBaseExternalSort.builder(new File(workDir), Arrays.asList("a", "b"))
+				.keyColumns(1, 0)
+				.segmentSizeBytes(16 * 1024)
+				.build();
+		try {
+			for (int i = 0; i < totalBatch; i++) {
+				map.put("a", random.nextLong());
+				map.put("b", (long) random.nextInt(200) - 100);
+				externalSort.appendLine(map);
+			}
+			externalSort.sortAll();
+
+			checkSorted(externalSort, Comparator.<long[]>comparingLong(c -> c[1]).thenComparingLong(c -> c[0]), totalBatch);
+		}
+		finally {
+			externalSort.close();
+			FileUtil.del(workDir);
+		}
+	}
+
+	@Test
+	public void sortAllBySortSpec() throws Exception {
+		final int totalBatch = 50_000;
+		// descending signed, then ascending unsigned
+		final SortSpec spec = SortSpec.builder()
+				.descending(0)
+				.unsignedAscending(1)
+				.build();
+		final Comparator<long[]> expected = Comparator.<long[]>comparingLong(c -> c[0]).reversed()
+				.thenComparing((x, y) -> Long.compareUnsigned(x[1], y[1]));
+
+		for (int mergeThreads : new int[] {1, 3}) {
+			final String workDir = filePath("sortAllBySortSpec");
+			final Random random = new Random(43);
+			FastLongBaseExternalSort<String> externalSort = FastLongBaseExternalSort.builder(new File(workDir), Arrays.asList("a", "b", "c"))
+					.sortSpec(spec)
+					.segmentSizeBytes(24 * 1024)
+					.maxMergeFanIn(8)
+					.mergeThreads(mergeThreads)
+					.build();
+			try {
+				long[][] rows = new long[totalBatch][];
+				for (int i = 0; i < totalBatch; i++) {
+					rows[i] = new long[] {random.nextInt(2000) - 1000, random.nextLong(), i};
+					externalSort.appendRow(rows[i]);
+				}
+				externalSort.sortAll();
+
+				Arrays.sort(rows, expected);
+				long[] row = new long[3];
+				int num = 0;
+				try (SortedRowCursor cursor = externalSort.cursor()) {
+					while (cursor.next()) {
+						cursor.copyTo(row);
+						Assert.isTrue(spec.comparator().compare(row, rows[num]) == 0 && expected.compare(row, rows[num]) == 0, "wrong row {}", num);
+						num++;
+					}
+				}
+				Assert.isTrue(num == totalBatch, "row count is not correct {}", num);
+
+				// from is the larger key of a descending column
+				int inRange = 0;
+				for (long[] r : rows) {
+					if (r[0] <= 100 && r[0] >= -100) {
+						inRange++;
+					}
+				}
+				int read = 0;
+				try (SortedRowCursor cursor = externalSort.range(100, -100)) {
+					long previous = 100;
+					while (cursor.next()) {
+						Assert.isTrue(cursor.getLong(0) <= previous && cursor.getLong(0) >= -100, "key out of range or order");
+						previous = cursor.getLong(0);
+						read++;
+					}
+				}
+				Assert.isTrue(read == inRange, "row count of the range is not correct {}", read);
+			}
+			finally {
+				externalSort.close();
+				FileUtil.del(workDir);
+			}
+		}
+	}
+
+	@Test
+	public void sortAllWithBoundedFanIn() throws Exception {
+		final String workDir = filePath("sortAllWithBoundedFanIn");
+		final int totalBatch = 10_000;
+		final Random random = new Random(11);
+
+		FastLongBaseExternalSort<String> externalSort = FastLongBaseExternalSort.builder(new File(workDir), Arrays.asList("a", "b"))
+				.comparator(Comparator.comparingLong(c -> c[0]))
+				// 64 lines per run, about 157 runs
+				.segmentSizeBytes(1024)
+				.maxMergeFanIn(4)
+				.build();
+		try {
+			Map<String, Long> map = new HashMap<>();
+			for (int i = 0; i < totalBatch; i++) {
+				map.put("a", random.nextLong());
+				map.put("b", (long) i);
+				externalSort.appendLine(map);
+			}
+			externalSort.sortAll();
+
+			checkSorted(externalSort, Comparator.comparingLong(c -> c[0]), totalBatch);
+			File[] mergeFiles = new File(workDir).listFiles((dir, name) -> name.startsWith("merge"));
+			Assert.isTrue(mergeFiles != null && mergeFiles.length == 0, "intermediate runs should be deleted");
+		}
+		finally {
+			externalSort.close();
+			FileUtil.del(workDir);
+		}
+	}
+
+	@Test
+	public void sortAllWithAsyncSpill() throws Exception {
+		final String workDir = filePath("sortAllWithAsyncSpill");
+		final int totalBatch = 50_000;
+		final Random random = new Random(13);
+
+		FastLongBaseExternalSort<String> externalSort = FastLongBaseExternalSort.builder(new File(workDir), Arrays.asList("a", "b"))
+				.comparator(Comparator.comparingLong(c -> c[0]))
+				.segmentSizeBytes(16 * 1024)
+				.asyncSpill(2, 2)
+				.build();
+		try {
+			Map<String, Long> map = new HashMap<>();
+			for (int i = 0; i < totalBatch; i++) {
+				map.put("a", random.nextLong());
+				map.put("b", (long) i);
+				externalSort.appendLine(map);
+			}
+			externalSort.sortAll();
+
+			checkSorted(externalSort, Comparator.comparingLong(c -> c[0]), totalBatch);
+		}
+		finally {
+			externalSort.close();
+			FileUtil.del(workDir);
+		}
+	}
+
+	@Test
+	public void sortAllWithParallelMerge() throws Exception {
+		final String workDir = filePath("sortAllWithParallelMerge");
+		final int totalBatch = 50_000;
+		final Random random = new Random(17);
+
+		FastLongBaseExternalSort<String> externalSort = FastLongBaseExternalSort.builder(new File(workDir), Arrays.asList("a", "b"))
+				.keyColumns(0)
+				.segmentSizeBytes(16 * 1024)
+				.mergeThreads(4)
+				.build();
+		try {
+			Map<String, Long> map = new HashMap<>();
+			for (int i = 0; i < totalBatch; i++) {
+				// few unique keys, so equal keys meet at the splitters
+				map.put("a", (long) random.nextInt(50));
+				map.put("b", (long) i);
+				externalSort.appendLine(map);
+			}
+			externalSort.sortAll();
+
+			checkSorted(externalSort, Comparator.comparingLong(c -> c[0]), totalBatch);
+			externalSort.close();
+
+			AtomicInteger num = new AtomicInteger(0);
+			FastLongBaseExternalSort.forEachSorted(new File(workDir), 2, line -> num.incrementAndGet());
+			Assert.isTrue(num.get() == totalBatch, "row count after reopen is not correct " + num.get());
+		}
+		finally {
+			externalSort.close();
+			FileUtil.del(workDir);
+		}
+	}
+
+	@Test
+	public void sortAllCompressed() throws Exception {
+		final int totalBatch = 50_000;
+
+		for (int mergeThreads : new int[] {1, 4}) {
+			final String workDir = filePath("sortAllCompressed");
+			final Random random = new Random(19);
+			FastLongBaseExternalSort<String> externalSort = FastLongBaseExternalSort.builder(new File(workDir), Arrays.asList("a", "b"))
+					.keyColumns(0)
+					.segmentSizeBytes(16 * 1024)
+					.maxMergeFanIn(8)
+					.mergeThreads(mergeThreads)
+					.segmentFormat(SegmentFormat.DELTA_VARINT)
+					.build();
+			try {
+				long sum = 0L;
+				for (int i = 0; i < totalBatch; i++) {
+					// small values compress, some random ones force raw blocks
+					long b = i % 1000 == 0 ? random.nextLong() : i;
+					externalSort.appendRow(random.nextInt(10_000), b);
+					sum += b;
+				}
+				externalSort.sortAll();
+
+				checkSorted(externalSort, Comparator.comparingLong(c -> c[0]), totalBatch);
+				externalSort.close();
+
+				try (LongBaseStorage out = new LongBaseStorage(new File(workDir), "out", 0, true, SegmentFormat.RAW, 2)) {
+					Assert.isTrue(out.format == SegmentFormat.DELTA_VARINT, "format should be loaded from the idx");
+					Assert.isTrue(out.getWrittenSize() < (long) totalBatch * 2 * Long.BYTES, "out is not compressed");
+				}
+
+				AtomicLong reopened = new AtomicLong();
+				AtomicInteger num = new AtomicInteger(0);
+				FastLongBaseExternalSort.forEachSorted(new File(workDir), 2, line -> {
+					num.incrementAndGet();
+					reopened.addAndGet(line.get(1));
+				});
+				Assert.isTrue(num.get() == totalBatch && reopened.get() == sum, "rows after reopen are not correct " + num.get());
+			}
+			finally {
+				externalSort.close();
+				FileUtil.del(workDir);
+			}
+		}
+	}
+
+	@Test
+	public void sortAllWithDurability() throws Exception {
+		final int totalBatch = 20_000;
+
+		for (Durability durability : Durability.values()) {
+			for (int mergeThreads : new int[] {1, 2}) {
+				final String workDir = filePath("sortAllWithDurability");
+				final Random random = new Random(23);
+				FastLongBaseExternalSort<String> externalSort = FastLongBaseExternalSort.builder(new File(workDir), Arrays.asList("a", "b"))
+						.keyColumns(0)
+						.segmentSizeBytes(4 * 1024)
+						.mergeThreads(mergeThreads)
+						.durability(durability)
+						.build();
+				try {
+					for (int i = 0; i < totalBatch; i++) {
+						externalSort.appendRow(random.nextLong(), i);
+					}
+					externalSort.sortAll();
+					externalSort.close();
+
+					AtomicInteger num = new AtomicInteger(0);
+					FastLongBaseExternalSort.forEachSorted(new File(workDir), 2, line -> num.incrementAndGet());
+					Assert.isTrue(num.get() == totalBatch, "row count after reopen is not correct {} {}", durability, num.get());
+				}
+				finally {
+					externalSort.close();
+					FileUtil.del(workDir);
+				}
+			}
+		}
+	}
+
+	@Test
+	public void sortAllWithMemoryBudget() throws Exception {
+		final int totalBatch = 200_000;
+		final long budget = 1024 * 1024;
+
+		for (int spillThreads : new int[] {0, 2}) {
+			final String workDir = filePath("sortAllWithMemoryBudget");
+			FastLongBaseExternalSort.Builder<String> builder = FastLongBaseExternalSort.builder(new File(workDir), Arrays.asList("a", "b"))
+					.keyColumns(0)
+					.memoryBudget(budget);
+			if (spillThreads > 0) {
+				builder.asyncSpill(spillThreads, 2);
+			}
+			FastLongBaseExternalSort<String> externalSort = builder.build();
+			try {
+				// the budget is filled, not exceeded
+				long memorySize = externalSort.memorySize();
+				Assert.isTrue(memorySize <= budget && memorySize > budget * 0.99, "memory size {} doesn't fit the budget", memorySize);
+
+				Random random = new Random(3);
+				for (int i = 0; i < totalBatch; i++) {
+					externalSort.appendRow(random.nextLong(), i);
+				}
+				externalSort.sortAll();
+				checkSorted(externalSort, Comparator.comparingLong(x -> x[0]), totalBatch);
+
+				int buffers = spillThreads > 0 ? 3 : 1;
+				int rows = FastLongBaseExternalSort.rowsOfBudget(budget / buffers, 2, true);
+				Assert.isTrue(externalSort.metrics().getPeakBufferRows() == rows, "runs should fill the buffer of {} rows", rows);
+			}
+			finally {
+				externalSort.close();
+				FileUtil.del(workDir);
+			}
+		}
+	}
+
+	@Test
+	public void sortAllWithReplacementSelection() throws Exception {
+		final int totalBatch = 200_000;
+		// 4096 rows per buffer
+		final int bufferRows = 4096;
+
+		for (SegmentFormat format : SegmentFormat.values()) {
+			for (boolean presorted : new boolean[] {false, true}) {
+				final String workDir = filePath("sortAllWithReplacementSelection");
+				FastLongBaseExternalSort<String> externalSort = FastLongBaseExternalSort.builder(new File(workDir), Arrays.asList("a", "b"))
+						.keyColumns(0)
+						.segmentSizeBytes(bufferRows * 2 * Long.BYTES)
+						.segmentFormat(format)
+						.mergeThreads(presorted ? 1 : 3)
+						.replacementSelection()
+						.build();
+				try {
+					Random random = new Random(11);
+					for (int i = 0; i < totalBatch; i++) {
+						// presorted input with some local disorder
+						long key = presorted ? i + random.nextInt(100) : random.nextLong();
+						externalSort.appendRow(key, i);
+					}
+					externalSort.sortAll();
+					checkSorted(externalSort, Comparator.comparingLong(x -> x[0]), totalBatch);
+
+					SortMetrics metrics = externalSort.metrics();
+					if (presorted) {
+						Assert.isTrue(metrics.getRunsCreated() == 1 && metrics.getMerges() == 0, "presorted input should be one run {}", metrics);
+					}
+					else {
+						long bufferRuns = (totalBatch + bufferRows - 1) / bufferRows;
+						Assert.isTrue(metrics.getRunsCreated() * 3 < bufferRuns * 2, "runs should be longer than the buffer {}", metrics);
+					}
+				}
+				finally {
+					externalSort.close();
+					FileUtil.del(workDir);
+				}
+			}
+		}
+	}
+
+	@Test
+	public void sortAllWithChannelIo() throws Exception {
+		final int totalBatch = 50_000;
+
+		for (SegmentFormat format : SegmentFormat.values()) {
+			for (int mergeThreads : new int[]{1, 4}) {
+				final String workDir = filePath("sortAllWithChannelIo");
+				final Random random = new Random(17);
+				FastLongBaseExternalSort<String> externalSort = FastLongBaseExternalSort.builder(new File(workDir), Arrays.asList("a", "b"))
+						.keyColumns(0)
+						.segmentSizeBytes(16 * 1024)
+						.maxMergeFanIn(8)
+						.mergeThreads(mergeThreads)
+						.segmentFormat(format)
+						.ioBackend(IoBackend.CHANNEL)
+						// smaller than the segments, so every segment is read in several buffers
+						.ioBufferBytes(4 * 1024)
+						.build();
+				try {
+					long[] keys = new long[totalBatch];
+					for (int i = 0; i < totalBatch; i++) {
+						keys[i] = random.nextInt(10_000) - 5_000;
+						externalSort.appendRow(keys[i], i);
+					}
+					Arrays.sort(keys);
+					externalSort.sortAll();
+
+					checkSorted(externalSort, Comparator.comparingLong(c -> c[0]), totalBatch);
+					try (SortedRowCursor cursor = externalSort.range(-100, 250)) {
+						checkRange(cursor, keys, -100, 250);
+					}
+					externalSort.close();
+
+					// mapped on reopen
+					try (SortedRowCursor cursor = FastLongBaseExternalSort.seek(new File(workDir), 2, 4_000)) {
+						checkRange(cursor, keys, 4_000, Long.MAX_VALUE);
+					}
+				}
+				finally {
+					externalSort.close();
+					FileUtil.del(workDir);
+				}
+			}
+		}
+	}
+
+	@Test
+	public void sortAllOffHeap() throws Exception {
+		final int totalBatch = 100_000;
+
+		// comparator, key columns, replacement selection, async spill, limit
+		for (int mode = 0; mode < 5; mode++) {
+			final String workDir = filePath("sortAllOffHeap");
+			final Random random = new Random(37);
+			FastLongBaseExternalSort.Builder<String> builder = FastLongBaseExternalSort.builder(new File(workDir), Arrays.asList("a", "b"))
+					.segmentSizeBytes(64 * 1024)
+					.maxMergeFanIn(8)
+					.offHeapRunBuffers();
+			if (mode == 0 || mode == 4) {
+				builder.comparator(Comparator.comparingLong(c -> c[0]));
+			}
+			else {
+				builder.keyColumns(0);
+			}
+			if (mode == 2) {
+				builder.replacementSelection();
+			}
+			else if (mode == 3) {
+				builder.asyncSpill(2, 2);
+			}
+			else if (mode == 4) {
+				builder.limit(1000);
+			}
+			FastLongBaseExternalSort<String> externalSort = builder.build();
+			try {
+				long[][] rows = new long[totalBatch][];
+				for (int i = 0; i < totalBatch; i++) {
+					rows[i] = new long[] {random.nextInt(20_000) - 10_000, i};
+					externalSort.appendRow(rows[i]);
+				}
+				externalSort.sortAll();
+
+				if (mode < 4) {
+					checkSorted(externalSort, Comparator.comparingLong(c -> c[0]), totalBatch);
+					continue;
+				}
+				// the earliest rows of a key are kept
+				Arrays.sort(rows, Comparator.comparingLong(c -> c[0]));
+				long[] row = new long[2];
+				int num = 0;
+				try (SortedRowCursor cursor = externalSort.cursor()) {
+					while (cursor.next()) {
+						cursor.copyTo(row);
+						Assert.isTrue(Arrays.equals(row, rows[num++]), "wrong row {}", num);
+					}
+				}
+				Assert.isTrue(num == 1000, "row count is not correct {}", num);
+			}
+			finally {
+				externalSort.close();
+				FileUtil.del(workDir);
+			}
+		}
+	}
+
+	@Test
+	public void concurrentWriters() throws Exception {
+		final int producers = 4;
+		final int rowsPerProducer = 50_000;
+		final int totalBatch = (producers + 1) * rowsPerProducer;
+
+		for (boolean offHeap : new boolean[] {false, true}) {
+			final String workDir = filePath("concurrentWriters");
+			FastLongBaseExternalSort.Builder<String> builder = FastLongBaseExternalSort.builder(new File(workDir), Arrays.asList("a", "b"))
+					.keyColumns(0)
+					.segmentSizeBytes(64 * 1024)
+					.maxMergeFanIn(16);
+			if (offHeap) {
+				builder.offHeapRunBuffers();
+			}
+			FastLongBaseExternalSort<String> externalSort = builder.build();
+			ExecutorService executor = Executors.newFixedThreadPool(producers);
+			try {
+				List<Future<?>> futures = new ArrayList<>();
+				for (int p = 0; p < producers; p++) {
+					final int producer = p;
+					final FastLongBaseExternalSort<String>.Writer writer = externalSort.newWriter();
+					futures.add(executor.submit(() -> {
+						Random random = new Random(producer);
+						// single rows and batches
+						long[] batch = new long[2 * 100];
+						for (int i = 0; i < rowsPerProducer; i += 100) {
+							for (int r = 0; r < 100; r++) {
+								batch[2 * r] = random.nextInt(1_000_000);
+								batch[2 * r + 1] = (long) producer * rowsPerProducer + i + r;
+							}
+							if (producer % 2 == 0) {
+								writer.appendRows(LongBuffer.wrap(batch));
+							}
+							else {
+								for (int r = 0; r < 100; r++) {
+									writer.appendRow(batch[2 * r], batch[2 * r + 1]);
+								}
+							}
+						}
+						writer.close();
+						return null;
+					}));
+				}
+				// the sorter appends too
+				Random random = new Random(producers);
+				for (int i = 0; i < rowsPerProducer; i++) {
+					externalSort.appendRow(random.nextInt(1_000_000), (long) producers * rowsPerProducer + i);
+				}
+				for (Future<?> future : futures) {
+					future.get();
+				}
+				externalSort.sortAll();
+
+				checkSorted(externalSort, Comparator.comparingLong(c -> c[0]), totalBatch);
+				long[] ids = new long[1];
+				externalSort.forEachSorted(line -> ids[0] += line.get(1));
+				Assert.isTrue(ids[0] == (long) totalBatch * (totalBatch - 1) / 2, "rows of the writers are not all there");
+				Assert.isTrue(externalSort.metrics().getRowsAppended() == totalBatch, "appended rows are not counted");
+			}
+			finally {
+				executor.shutdownNow();
+				externalSort.close();
+				FileUtil.del(workDir);
+			}
+		}
+
+		final String workDir = filePath("concurrentWriters");
+		try (FastLongBaseExternalSort<String> externalSort = FastLongBaseExternalSort.builder(new File(workDir), Arrays.asList("a", "b"))
+				.keyColumns(0)
+				.build()) {
+			externalSort.newWriter().appendRow(1, 2);
+			try {
+				externalSort.sortAll();
+				throw new RuntimeException("sortAll should fail while a writer is open");
+			}
+			catch (IllegalStateException expected) {
+				// writer not closed
+			}
+		}
+		finally {
+			FileUtil.del(workDir);
+		}
+	}
+
+	@Test
+	public void incrementalSortAll() throws Exception {
+		final int rowsPerRound = 20_000;
+		final int rounds = 3;
+
+		for (int mergeThreads : new int[] {1, 3}) {
+			final String workDir = filePath("incrementalSortAll");
+			FastLongBaseExternalSort.Builder<String> builder = FastLongBaseExternalSort.builder(new File(workDir), Arrays.asList("a", "b"))
+					.keyColumns(0)
+					.segmentSizeBytes(64 * 1024)
+					.maxMergeFanIn(4)
+					.mergeThreads(mergeThreads);
+			if (mergeThreads == 1) {
+				builder.replacementSelection();
+			}
+			FastLongBaseExternalSort<String> externalSort = builder.build();
+			try {
+				Random random = new Random(mergeThreads);
+				long id = 0;
+				for (int round = 0; round < rounds; round++) {
+					try (FastLongBaseExternalSort<String>.Writer writer = externalSort.newWriter()) {
+						for (int i = 0; i < rowsPerRound; i++) {
+							if (i % 2 == 0) {
+								externalSort.appendRow(random.nextInt(1_000_000), id++);
+							}
+							else {
+								writer.appendRow(random.nextInt(1_000_000), id++);
+							}
+						}
+					}
+					externalSort.sortAll();
+
+					final long rows = id;
+					checkSorted(externalSort, Comparator.comparingLong(c -> c[0]), (int) rows);
+					long[] ids = new long[1];
+					externalSort.forEachSorted(line -> ids[0] += line.get(1));
+					Assert.isTrue(ids[0] == rows * (rows - 1) / 2, "rows of round {} are not all there", round);
+				}
+				// nothing appended, the result stays
+				externalSort.sortAll();
+				checkSorted(externalSort, Comparator.comparingLong(c -> c[0]), (int) id);
+				String[] merged = new File(workDir).list((dir, name) -> name.startsWith("next") || name.startsWith("previous"));
+				Assert.isTrue(merged == null || merged.length == 0, "files of the merge are left");
+			}
+			finally {
+				externalSort.close();
+				FileUtil.del(workDir);
+			}
+		}
+
+		// equal keys of the previous result and the new rows are combined
+		final String workDir = filePath("incrementalSortAll");
+		try (FastLongBaseExternalSort<String> externalSort = FastLongBaseExternalSort.builder(new File(workDir), Arrays.asList("key", "count"))
+				.keyColumns(0)
+				.segmentSizeBytes(4 * 1024)
+				.combiner(RowCombiner.sum(1))
+				.build()) {
+			for (int round = 0; round < rounds; round++) {
+				for (int key = 0; key < 500; key++) {
+					externalSort.appendRow(key, 1);
+				}
+				externalSort.sortAll();
+			}
+			AtomicInteger num = new AtomicInteger(0);
+			externalSort.forEachSorted(line -> {
+				Assert.isTrue(line.get(0) == num.getAndIncrement() && line.get(1) == rounds, "wrong row {}", join(line));
+			});
+			Assert.isTrue(num.get() == 500, "row count is not correct {}", num.get());
+		}
+		finally {
+			FileUtil.del(workDir);
+		}
+
+		// the rows kept by a limit are selected against the new rows
+		final String limitDir = filePath("incrementalSortAll");
+		try (FastLongBaseExternalSort<String> externalSort = FastLongBaseExternalSort.builder(new File(limitDir), Arrays.asList("a", "b"))
+				.keyColumns(0)
+				.limit(100)
+				.build()) {
+			for (int round = rounds; round > 0; round--) {
+				for (int i = 0; i < 1000; i++) {
+					externalSort.appendRow(round * 1000 + i, i);
+				}
+				externalSort.sortAll();
+				AtomicInteger num = new AtomicInteger(0);
+				final int first = round * 1000;
+				externalSort.forEachSorted(line -> {
+					Assert.isTrue(line.get(0) == first + num.getAndIncrement(), "wrong row {}", join(line));
+				});
+				Assert.isTrue(num.get() == 100, "row count is not correct {}", num.get());
+			}
+		}
+		finally {
+			FileUtil.del(limitDir);
+		}
+	}
+
+	@Test
+	public void mergeSortedFiles() throws Exception {
+		final int shards = 4;
+		final int rowsPerShard = 20_000;
+		final SortSpec spec = SortSpec.builder()
+				.descending(0)
+				.build();
+		final Comparator<long[]> expected = Comparator.<long[]>comparingLong(c -> c[0]).reversed();
+
+		final String workDir = filePath("mergeSortedFiles");
+		try {
+			// one sorter per shard, the last shard is empty
+			List<File> directories = new ArrayList<>();
+			long total = 0;
+			for (int shard = 0; shard < shards; shard++) {
+				File directory = new File(filePath("mergeSortedFiles/shard" + shard));
+				Random random = new Random(shard);
+				try (FastLongBaseExternalSort<String> externalSort = FastLongBaseExternalSort.builder(directory, Arrays.asList("a", "b"))
+						.sortSpec(spec)
+						.segmentSizeBytes(64 * 1024)
+						.build()) {
+					int rows = shard == shards - 1 ? 0 : rowsPerShard;
+					for (int i = 0; i < rows; i++) {
+						externalSort.appendRow(random.nextInt(2000) - 1000, total++);
+					}
+					externalSort.sortAll();
+				}
+				directories.add(directory);
+			}
+
+			File target = new File(filePath("mergeSortedFiles/merged"));
+			long merged = FastLongBaseExternalSort.mergeSorted(directories, 2, spec, target);
+			Assert.isTrue(merged == total, "row count is not correct {}", merged);
+
+			long[] previous = new long[2];
+			long[] ids = new long[2];
+			FastLongBaseExternalSort.forEachSorted(target, 2, line -> {
+				long[] current = {line.get(0), line.get(1)};
+				if (ids[1]++ > 0 && expected.compare(previous, current) > 0) {
+					throw new RuntimeException("result is not correct: " + join(line));
+				}
+				System.arraycopy(current, 0, previous, 0, 2);
+				ids[0] += current[1];
+			});
+			Assert.isTrue(ids[1] == total && ids[0] == total * (total - 1) / 2, "rows of the shards are not all there");
+			// the merged file has fences
+			try (SortedRowCursor cursor = FastLongBaseExternalSort.range(target, 2, 10, 10)) {
+				while (cursor.next()) {
+					Assert.isTrue(cursor.getLong(0) == 10, "key out of range");
+				}
+			}
+
+			// the merged file is merged again with a shard, to a consumer
+			long[] count = new long[1];
+			long[] last = {Long.MAX_VALUE, 0};
+			long rows = FastLongBaseExternalSort.mergeSorted(Arrays.asList(target, directories.get(0)), 2, expected, row -> {
+				Assert.isTrue(row[0] <= last[0], "result is not correct");
+				last[0] = row[0];
+				count[0]++;
+			});
+			Assert.isTrue(rows == count[0] && rows == total + rowsPerShard, "row count is not correct {}", rows);
+
+			try {
+				FastLongBaseExternalSort.mergeSorted(directories, 2, spec, directories.get(0));
+				throw new RuntimeException("a sorted directory should not be the target");
+			}
+			catch (IllegalArgumentException expectedFailure) {
+				// target is a source
+			}
+
+			// a failed merge keeps the merged file already in the target
+			int[] compared = new int[1];
+			try {
+				FastLongBaseExternalSort.mergeSorted(directories, 2, (o1, o2) -> {
+					if (++compared[0] > 1000) {
+						throw new IllegalStateException("comparator failure");
+					}
+					return expected.compare(o1, o2);
+				}, target);
+				throw new RuntimeException("the merge should fail");
+			}
+			catch (IllegalStateException expectedFailure) {
+				// comparator failure
+			}
+			long[] kept = new long[1];
+			FastLongBaseExternalSort.forEachSorted(target, 2, line -> kept[0]++);
+			Assert.isTrue(kept[0] == total, "merged file is lost {}", kept[0]);
+			String[] merging = target.list((dir, name) -> name.startsWith("merging"));
+			Assert.isTrue(merging == null || merging.length == 0, "files of the failed merge are left");
+
+			// sorted files of different formats are not merged into one
+			File compressed = new File(filePath("mergeSortedFiles/compressed"));
+			try (FastLongBaseExternalSort<String> externalSort = FastLongBaseExternalSort.builder(compressed, Arrays.asList("a", "b"))
+					.sortSpec(spec)
+					.segmentFormat(SegmentFormat.DELTA_VARINT)
+					.build()) {
+				externalSort.appendRow(1, 1);
+				externalSort.sortAll();
+			}
+			try {
+				FastLongBaseExternalSort.mergeSorted(Arrays.asList(directories.get(0), compressed), 2, spec,
+						new File(filePath("mergeSortedFiles/mixed")));
+				throw new RuntimeException("sorted files of different formats should not be merged");
+			}
+			catch (IllegalArgumentException expectedFailure) {
+				// mixed formats
+			}
+		}
+		finally {
+			FileUtil.del(workDir);
+		}
+	}
+
+	@Test
+	public void sortAllWithLimit() throws Exception {
+		final int totalBatch = 100_000;
+		final int limit = 1000;
+
+		for (boolean keyColumns : new boolean[] {false, true}) {
+			final String workDir = filePath("sortAllWithLimit");
+			final Random random = new Random(29);
+			FastLongBaseExternalSort.Builder<String> builder = FastLongBaseExternalSort.builder(new File(workDir), Arrays.asList("a", "b"))
+					.limit(limit);
+			FastLongBaseExternalSort<String> externalSort = keyColumns
+					? builder.keyColumns(0).build()
+					: builder.comparator(Comparator.comparingLong(c -> c[0])).build();
+			try {
+				long[][] rows = new long[totalBatch][];
+				for (int i = 0; i < totalBatch; i++) {
+					// many equal keys, the earliest rows of a key are kept
+					rows[i] = new long[] {random.nextInt(5000) - 2500, i};
+					externalSort.appendRow(rows[i]);
+				}
+				externalSort.sortAll();
+
+				Arrays.sort(rows, Comparator.comparingLong(c -> c[0]));
+				long[] row = new long[2];
+				int num = 0;
+				try (SortedRowCursor cursor = externalSort.cursor()) {
+					while (cursor.next()) {
+						cursor.copyTo(row);
+						Assert.isTrue(Arrays.equals(row, rows[num++]), "wrong row {}", num);
+					}
+				}
+				Assert.isTrue(num == limit, "row count is not correct {}", num);
+				// the rows never leave the buffer, no run is written
+				String[] runFiles = new File(workDir).list((dir, name) -> name.startsWith("data"));
+				Assert.isTrue(runFiles == null || runFiles.length == 0, "run files of a top-k sort: {}", Arrays.toString(runFiles));
+			}
+			finally {
+				externalSort.close();
+				FileUtil.del(workDir);
+			}
+		}
+	}
+
+	@Test
+	public void sortAllWithCombiner() throws Exception {
+		final int totalBatch = 50_000;
+		final int keys = 300;
+
+		for (int mergeThreads : new int[] {1, 3, 2}) {
+			final String workDir = filePath("sortAllWithCombiner");
+			final Random random = new Random(31);
+			RowCombiner countAndMax = (acc, row) -> {
+				RowCombiner.sum(1).combine(acc, row);
+				RowCombiner.max(2).combine(acc, row);
+			};
+			FastLongBaseExternalSort.Builder<String> builder = FastLongBaseExternalSort.builder(new File(workDir), Arrays.asList("key", "count", "max"))
+					.keyColumns(0)
+					.segmentSizeBytes(4 * 1024)
+					.maxMergeFanIn(4)
+					.mergeThreads(mergeThreads)
+					.combiner(countAndMax);
+			if (mergeThreads == 2) {
+				// equal rows of a run written by several spills are combined by the merge
+				builder.replacementSelection().offHeapRunBuffers();
+			}
+			FastLongBaseExternalSort<String> externalSort = builder.build();
+			try {
+				long[] counts = new long[keys];
+				long[] maxes = new long[keys];
+				Arrays.fill(maxes, Long.MIN_VALUE);
+				for (int i = 0; i < totalBatch; i++) {
+					int key = random.nextInt(keys);
+					long value = random.nextLong();
+					externalSort.appendRow(key, 1, value);
+					counts[key]++;
+					maxes[key] = Math.max(maxes[key], value);
+				}
+				externalSort.sortAll();
+
+				long[] row = new long[3];
+				int num = 0;
+				try (SortedRowCursor cursor = externalSort.cursor()) {
+					while (cursor.next()) {
+						cursor.copyTo(row);
+						int key = (int) row[0];
+						Assert.isTrue(key == num++ && row[1] == counts[key] && row[2] == maxes[key], "wrong row of key {}", key);
+					}
+				}
+				Assert.isTrue(num == keys, "row count is not correct {}", num);
+			}
+			finally {
+				externalSort.close();
+				FileUtil.del(workDir);
+			}
+		}
+	}
+
+	@Test
+	public void storageLayout() throws Exception {
+		final String workDir = filePath("storageLayout");
+		final int totalBatch = 10_000;
+
+		FastLongBaseExternalSort<String> externalSort = FastLongBaseExternalSort.builder(new File(workDir), Arrays.asList("a", "b"))
+				.keyColumns(0)
+				.segmentSizeBytes(1024)
+				.build();
+		try {
+			for (int i = 0; i < totalBatch; i++) {
+				externalSort.appendRow(totalBatch - i, i);
+			}
+			externalSort.sortAll();
+			externalSort.close();
+
+			// no preallocated space is left in the out files
+			File[] outFiles = new File(workDir).listFiles((dir, name) -> name.startsWith("out-"));
+			Assert.isTrue(outFiles != null && Arrays.stream(outFiles).mapToLong(File::length).sum() == (long) totalBatch * 2 * Long.BYTES,
+					"out files should be truncated to their content");
+
+			// a first version idx: int positions ended by a zero
+			FileUtil.del(new File(workDir, "out.idx"));
+			ByteBuffer legacy = ByteBuffer.allocate((outFiles.length + 1) * Integer.BYTES);
+			for (int i = 0; i < outFiles.length; i++) {
+				legacy.putInt((int) new File(workDir, "out-" + i).length());
+			}
+			FileUtil.writeBytes(legacy.array(), new File(workDir, "out.idx"));
+
+			AtomicLong expected = new AtomicLong(1);
+			FastLongBaseExternalSort.forEachSorted(new File(workDir), 2, line ->
+					Assert.isTrue(line.get(0) == expected.getAndIncrement(), "wrong row {}", join(line)));
+			Assert.isTrue(expected.get() == totalBatch + 1, "row count after reopen is not correct {}", expected.get());
+		}
+		finally {
+			externalSort.close();
+			FileUtil.del(workDir);
+		}
+	}
+
+	@Test
+	public void cursor() throws Exception {
+		final String workDir = filePath("cursor");
+		final int totalBatch = 10_000;
+
+		FastLongBaseExternalSort<String> externalSort = FastLongBaseExternalSort.builder(new File(workDir), Arrays.asList("a", "b"))
+				.keyColumns(1)
+				.segmentSizeBytes(16 * 1024)
+				.build();
+		try {
+			Map<String, Long> map = new HashMap<>();
+			for (int i = 0; i < totalBatch; i++) {
+				map.put("a", (long) i);
+				map.put("b", (long) totalBatch - i - 1);
+				externalSort.appendLine(map);
+			}
+			externalSort.sortAll();
+
+			long[] row = new long[2];
+			try (SortedRowCursor cursor = externalSort.cursor()) {
+				// early termination
+				for (int i = 0; i < 10; i++) {
+					Assert.isTrue(cursor.next());
+					cursor.copyTo(row);
+					Assert.isTrue(row[1] == i && cursor.getLong(0) + cursor.getLong(1) == totalBatch - 1, "wrong row {}", i);
+				}
+			}
+			externalSort.close();
+
+			long[] batch = new long[2 * 999];
+			long expected = 0;
+			try (SortedRowCursor cursor = FastLongBaseExternalSort.openCursor(new File(workDir), 2)) {
+				int rows;
+				while ((rows = cursor.read(batch, 0, 999)) > 0) {
+					for (int i = 0; i < rows; i++) {
+						Assert.isTrue(batch[i * 2 + 1] == expected++, "wrong row {}", expected);
+					}
+				}
+				Assert.isFalse(cursor.next());
+			}
+			Assert.isTrue(expected == totalBatch, "row count is not correct {}", expected);
+		}
+		finally {
+			externalSort.close();
+			FileUtil.del(workDir);
+		}
+	}
+
+	@Test
+	public void readersShareSegments() throws Exception {
+		final String workDir = filePath("readersShareSegments");
+		final int totalBatch = 10_000;
+
+		// several runs merged in parallel, the output is one released segment per partition
+		try (FastLongBaseExternalSort<String> externalSort = FastLongBaseExternalSort.builder(new File(workDir), Arrays.asList("a", "b"))
+				.keyColumns(0)
+				.segmentSizeBytes(16 * 1024)
+				.memoryBudget(64 * 1024)
+				.mergeThreads(4)
+				.build()) {
+			for (int i = 0; i < totalBatch; i++) {
+				externalSort.appendRow(totalBatch - i - 1, i);
+			}
+			externalSort.sortAll();
+
+			// the leading cursor leaves every segment while the other one still reads it
+			try (SortedRowCursor ahead = externalSort.cursor(); SortedRowCursor behind = externalSort.cursor()) {
+				for (int i = 0; i < 300; i++) {
+					Assert.isTrue(ahead.next() && ahead.getLong(0) == i, "wrong row {}", i);
+				}
+				for (int i = 0; i < totalBatch; i++) {
+					if (i + 300 < totalBatch) {
+						Assert.isTrue(ahead.next() && ahead.getLong(0) == i + 300, "wrong row {}", i + 300);
+					}
+					Assert.isTrue(behind.next() && behind.getLong(0) == i, "wrong row {}", i);
+					if (i == 5_000) {
+						// a cursor closed early lets go of the segment it was reading
+						try (SortedRowCursor cursor = externalSort.seek(i)) {
+							Assert.isTrue(cursor.next() && cursor.getLong(0) == i, "wrong row {}", i);
+						}
+					}
+				}
+				Assert.isFalse(ahead.next());
+				Assert.isFalse(behind.next());
+			}
+			// a stream and a cursor, the stream is closed halfway
+			try (Stream<long[]> rows = externalSort.stream(); SortedRowCursor behind = externalSort.cursor()) {
+				Iterator<long[]> ahead = rows.iterator();
+				for (int i = 0; i < 300; i++) {
+					Assert.isTrue(ahead.next()[0] == i, "wrong row {}", i);
+				}
+				for (int i = 0; i < totalBatch; i++) {
+					if (i < totalBatch / 2) {
+						Assert.isTrue(ahead.hasNext() && ahead.next()[0] == i + 300, "wrong row {}", i + 300);
+					}
+					else if (i == totalBatch / 2) {
+						rows.close();
+					}
+					Assert.isTrue(behind.next() && behind.getLong(0) == i, "wrong row {}", i);
+				}
+			}
+			checkSorted(externalSort, Comparator.comparingLong(c -> c[0]), totalBatch);
+		}
+		finally {
+			FileUtil.del(workDir);
+		}
+	}
+
+	@Test
+	public void seekAndRange() throws Exception {
+		final int totalBatch = 50_000;
+
+		for (SegmentFormat format : SegmentFormat.values()) {
+			final String workDir = filePath("seekAndRange");
+			final Random random = new Random(17);
+			FastLongBaseExternalSort<String> externalSort = FastLongBaseExternalSort.builder(new File(workDir), Arrays.asList("key", "value"))
+					.keyColumns(0)
+					.segmentSizeBytes(64 * 1024)
+					.segmentFormat(format)
+					.build();
+			try {
+				// signed keys with duplicates
+				long[] keys = new long[totalBatch];
+				for (int i = 0; i < totalBatch; i++) {
+					keys[i] = random.nextInt(10_000) - 5_000;
+					externalSort.appendRow(keys[i], i);
+				}
+				Arrays.sort(keys);
+				externalSort.sortAll();
+
+				try (SortedRowCursor cursor = externalSort.range(-100, 250)) {
+					checkRange(cursor, keys, -100, 250);
+				}
+				try (SortedRowCursor cursor = externalSort.seek(4_990)) {
+					checkRange(cursor, keys, 4_990, Long.MAX_VALUE);
+				}
+				try (SortedRowCursor cursor = externalSort.range(Long.MIN_VALUE, -4_990)) {
+					checkRange(cursor, keys, Long.MIN_VALUE, -4_990);
+				}
+				try (SortedRowCursor cursor = externalSort.range(6_000, 7_000)) {
+					Assert.isFalse(cursor.next());
+				}
+				externalSort.close();
+
+				try (SortedRowCursor cursor = FastLongBaseExternalSort.range(new File(workDir), 2, 17, 17)) {
+					checkRange(cursor, keys, 17, 17);
+				}
+				try (SortedRowCursor cursor = FastLongBaseExternalSort.seek(new File(workDir), 2, -5_000)) {
+					checkRange(cursor, keys, -5_000, Long.MAX_VALUE);
+				}
+			}
+			finally {
+				externalSort.close();
+				FileUtil.del(workDir);
+			}
+		}
+	}
+
+	private static void checkRange(SortedRowCursor cursor, long[] sortedKeys, long from, long to) {
+		int expected = 0;
+		for (long key : sortedKeys) {
+			if (key >= from && key <= to) {
+				expected++;
+			}
+		}
+		int num = 0;
+		long previous = from;
+		while (cursor.next()) {
+			long key = cursor.getLong(0);
+			Assert.isTrue(key >= previous && key <= to, "key {} is out of range or order", key);
+			previous = key;
+			num++;
+		}
+		Assert.isTrue(num == expected, "row count of [{}, {}] is not correct {}", from, to, num);
+	}
+
+	@Test
+	public void parallelStream() throws Exception {
+		final int totalBatch = 200_000;
+
+		for (SegmentFormat format : SegmentFormat.values()) {
+			for (int mergeThreads : new int[]{1, 4}) {
+				final String workDir = filePath("parallelStream");
+				final Random random = new Random(41);
+				FastLongBaseExternalSort<String> externalSort = FastLongBaseExternalSort.builder(new File(workDir), Arrays.asList("a", "b"))
+						.keyColumns(0)
+						.segmentSizeBytes(256 * 1024)
+						.mergeThreads(mergeThreads)
+						.segmentFormat(format)
+						.build();
+				try {
+					long[] keys = new long[totalBatch];
+					for (int i = 0; i < totalBatch; i++) {
+						keys[i] = random.nextInt(100_000);
+						externalSort.appendRow(keys[i], i);
+					}
+					Arrays.sort(keys);
+					externalSort.sortAll();
+
+					try (Stream<long[]> rows = externalSort.stream()) {
+						Spliterator<long[]> spliterator = rows.spliterator();
+						Assert.notNull(spliterator.trySplit(), "sorted rows should split");
+					}
+					try (Stream<long[]> rows = externalSort.stream()) {
+						long[] sorted = rows.parallel().mapToLong(row -> row[0]).toArray();
+						Assert.isTrue(Arrays.equals(sorted, keys), "parallel stream should keep the sorted order");
+					}
+					try (Stream<long[]> rows = externalSort.stream()) {
+						long sum = rows.parallel().mapToLong(row -> row[1]).sum();
+						Assert.isTrue(sum == (long) totalBatch * (totalBatch - 1) / 2, "wrong rows {}", sum);
+					}
+					externalSort.close();
+
+					try (Stream<long[]> rows = FastLongBaseExternalSort.stream(new File(workDir), 2)) {
+						Assert.isTrue(rows.parallel().count() == totalBatch, "row count is not correct");
+					}
+				}
+				finally {
+					externalSort.close();
+					FileUtil.del(workDir);
+				}
+			}
+		}
+	}
+
+	@Test
+	public void metrics() throws Exception {
+		final String workDir = filePath("metrics");
+		final int totalBatch = 100_000;
+
+		AtomicInteger runs = new AtomicInteger();
+		AtomicLong runBytes = new AtomicLong();
+		AtomicInteger merges = new AtomicInteger();
+		AtomicInteger finished = new AtomicInteger();
+		FastLongBaseExternalSort<String> externalSort = FastLongBaseExternalSort.builder(new File(workDir), Arrays.asList("a", "b"))
+				.comparator(Comparator.comparingLong(x -> x[0]))
+				.segmentSizeBytes(64 * 1024)
+				.maxMergeFanIn(8)
+				.countComparisons()
+				.listener(new SortListener() {
+					@Override
+					public void runWritten(int rows, long bytes, long sortNanos, long flushNanos) {
+						runs.incrementAndGet();
+						runBytes.addAndGet(bytes);
+					}
+
+					@Override
+					public void mergeFinished(int fanIn, long bytesRead, long bytesWritten, long nanos) {
+						merges.incrementAndGet();
+					}
+
+					@Override
+					public void sortFinished(SortMetrics metrics) {
+						finished.incrementAndGet();
+					}
+				})
+				.jmx("metricsTest")
+				.build();
+		ObjectName objectName = new ObjectName("com.gearwheel.externalsort:type=FastLongBaseExternalSort,name=\"metricsTest\"");
+		try {
+			Random random = new Random(5);
+			for (int i = 0; i < totalBatch; i++) {
+				externalSort.appendRow(random.nextLong(), i);
+			}
+			externalSort.sortAll();
+
+			SortMetrics metrics = externalSort.metrics();
+			log.info("{}", metrics);
+			long bytes = (long) totalBatch * 2 * Long.BYTES;
+			Assert.isTrue(metrics.getRowsAppended() == totalBatch && metrics.getRowsSorted() == totalBatch, "rows are not counted {}", metrics);
+			Assert.isTrue(metrics.getRunsCreated() == runs.get() && runs.get() > 8, "runs are not counted {}", metrics);
+			Assert.isTrue(metrics.getBytesSpilled() == bytes && runBytes.get() == bytes, "spilled bytes are not counted {}", metrics);
+			Assert.isTrue(metrics.getMerges() == merges.get() && merges.get() > 1 && metrics.getMaxMergeFanIn() == 8, "merges are not counted {}", metrics);
+			Assert.isTrue(metrics.getBytesMergeRead() > bytes && metrics.getBytesMergeWritten() == metrics.getBytesMergeRead(), "merge bytes are not counted {}", metrics);
+			Assert.isTrue(metrics.getComparisons() > totalBatch && metrics.getPeakBufferRows() == 4096, "comparisons are not counted {}", metrics);
+			Assert.isTrue(finished.get() == 1 && metrics.sortRowsPerSecond() > 0, "sort is not finished {}", metrics);
+
+			Object jmxRows = ManagementFactory.getPlatformMBeanServer().getAttribute(objectName, "RowsAppended");
+			Assert.isTrue(Long.valueOf(totalBatch).equals(jmxRows), "jmx rows are not correct {}", jmxRows);
+		}
+		finally {
+			externalSort.close();
+			FileUtil.del(workDir);
+		}
+		Assert.isFalse(ManagementFactory.getPlatformMBeanServer().isRegistered(objectName), "metrics should be unregistered on close");
+	}
+
+	@Test
+	public void appendPrimitive() throws Exception {
+		final String workDir = filePath("appendPrimitive");
+		final int batch = 3_000;
+
+		FastLongBaseExternalSort<String> externalSort = FastLongBaseExternalSort.builder(new File(workDir), Arrays.asList("a", "b"))
+				.keyColumns(1)
+				.segmentSizeBytes(16 * 1024)
+				.build();
+		try {
+			// lines i with a = i, b = 4 * batch - i - 1, appended in four ways
+			long total = 4L * batch;
+			for (int i = 0; i < batch; i++) {
+				externalSort.appendRow(i, total - i - 1);
+			}
+
+			long[][] columns = new long[2][batch];
+			for (int i = 0; i < batch; i++) {
+				columns[0][i] = batch + i;
+				columns[1][i] = total - batch - i - 1;
+			}
+			externalSort.appendColumns(columns, 0, batch);
+
+			LongBuffer longs = LongBuffer.allocate(2 * batch);
+			for (int i = 2 * batch; i < 3 * batch; i++) {
+				longs.put(i).put(total - i - 1);
+			}
+			longs.flip();
+			externalSort.appendRows(longs);
+
+			ByteBuffer bytes = ByteBuffer.allocate(2 * batch * Long.BYTES).order(ByteOrder.LITTLE_ENDIAN);
+			for (int i = 3 * batch; i < 4 * batch; i++) {
+				bytes.putLong(i).putLong(total - i - 1);
+			}
+			bytes.flip();
+			externalSort.appendRows(bytes);
+			Assert.isFalse(bytes.hasRemaining());
+
+			externalSort.sortAll();
+
+			AtomicLong atomicLong = new AtomicLong(0);
+			externalSort.forEachSorted(line -> check(line, (int) total, atomicLong, 1));
+			Assert.isTrue(atomicLong.get() == total, "row count is not correct {}", atomicLong.get());
+		}
+		finally {
+			externalSort.close();
+			FileUtil.del(workDir);
+		}
+	}
+
+	@Test
+	public void appendLineFailure() throws Exception {
+		final String workDir = filePath("appendLineFailure");
+		try (FastLongBaseExternalSort<String> externalSort = FastLongBaseExternalSort.builder(new File(workDir), Arrays.asList("a", "b"))
+				.keyColumns(0)
+				.build()) {
+			Map<String, Long> map = new HashMap<>();
+			for (int i = 0; i < 100; i++) {
+				map.put("a", (long) i);
+				map.put("b", (long) -i);
+				externalSort.appendLine(map);
+			}
+			// a missing head and a null value are rejected, nothing of the line is kept
+			map.remove("b");
+			map.put("c", 7L);
+			try {
+				externalSort.appendLine(map);
+				throw new RuntimeException("a line without a head should fail");
+			}
+			catch (IllegalArgumentException expected) {
+				// no value of b
+			}
+			map.put("b", null);
+			try {
+				externalSort.appendLine(map);
+				throw new RuntimeException("a line with a null value should fail");
+			}
+			catch (IllegalArgumentException expected) {
+				// null value of b
+			}
+			externalSort.sortAll();
+
+			checkSorted(externalSort, Comparator.comparingLong(c -> c[0]), 100);
+			Assert.isTrue(externalSort.metrics().getRowsAppended() == 100, "failed lines are counted");
+		}
+		finally {
+			FileUtil.del(workDir);
+		}
+	}
+
+	@Test
+	public void asyncSpillFailure() throws Exception {
+		final String workDir = filePath("asyncSpillFailure");
+
+		FastLongBaseExternalSort<String> externalSort = FastLongBaseExternalSort.builder(new File(workDir), Arrays.asList("a", "b"))
+				.comparator((x, y) -> {
+					throw new IllegalArgumentException("broken comparator");
+				})
+				.segmentSizeBytes(1024)
+				.asyncSpill(1, 1)
+				.build();
+		try {
+			Map<String, Long> map = new HashMap<>();
+			map.put("a", 1L);
+			map.put("b", 2L);
+			IllegalStateException failure = null;
+			try {
+				for (int i = 0; i < 1000; i++) {
+					externalSort.appendLine(map);
+				}
+				externalSort.sortAll();
+			}
+			catch (IllegalStateException e) {
+				failure = e;
+			}
+			Assert.isTrue(failure != null && failure.getCause() instanceof IllegalArgumentException, "spill failure should be propagated");
+		}
+		finally {
+			externalSort.close();
+			FileUtil.del(workDir);
+		}
+	}
+
+	private static void checkSorted(FastLongBaseExternalSort<?> externalSort, Comparator<long[]> expected, int totalBatch) {
+		long[] previous = new long[2];
+		AtomicInteger num = new AtomicInteger(0);
+		externalSort.forEachSorted(line -> {
+			long[] current = {line.get(0), line.get(1)};
+			if (num.getAndIncrement() > 0 && expected.compare(previous, current) > 0) {
+				throw new RuntimeException("result is not correct: " + join(line));
+			}
+			System.arraycopy(current, 0, previous, 0, 2);
+		});
+		Assert.isTrue(num.get() == totalBatch, "row count is not correct " + num.get());
+	}
+
 	public static void check(List<Long> line, int totalBatch, AtomicLong atomicLong, int idx) {
 		boolean condition = atomicLong.getAndIncrement() == line.get(idx) && line.get(0) + line.get(1) == totalBatch - 1;
 		if (!condition) {
@@ -0,0 +1,85 @@
+package com.gearwheel.externalsort;
+
+import cn.hutool.core.lang.Assert;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.function.Function;
+import java.util.stream.LongStream;
+
+public class LoserTreeTest {
+
+	private static final Comparator<long[]> COMPARATOR = Comparator.comparingLong(c -> c[0]);
+
+	@Test
+	public void merge() {
+		for (int k : new int[]{1, 2, 3, 7, 16, 33}) {
+			ByteBuffer[] runs = createRuns(k, 100, new Random(k));
+			long[] expected = Arrays.stream(runs).flatMapToLong(LoserTreeTest::values).sorted().toArray();
+
+			LoserTree<long[]> tree = new LoserTree<>(readers(runs), COMPARATOR);
+			int i = 0;
+			while (!tree.isEmpty()) {
+				Assert.isTrue(tree.peek()[0] == expected[i], "wrong element at {} of k = {}", i, k);
+				i++;
+				tree.next();
+			}
+			Assert.isTrue(i == expected.length, "wrong element count of k = {}", k);
+		}
+	}
+
+	@Test
+	public void mergeWithEmptyRuns() {
+		ByteBuffer[] runs = {ByteBuffer.allocate(0), createRuns(1, 10, new Random(1))[0], ByteBuffer.allocate(0)};
+		LoserTree<long[]> tree = new LoserTree<>(readers(runs), COMPARATOR);
+		int i = 0;
+		while (!tree.isEmpty()) {
+			i++;
+			tree.next();
+		}
+		Assert.isTrue(i == 10, "wrong element count {}", i);
+		Assert.isTrue(new LoserTree<>(new ArrayList<Segment.BufferedSegmentReader<long[]>>(), COMPARATOR).isEmpty());
+	}
+
+	private static ByteBuffer[] createRuns(int k, int rowsPerRun, Random random) {
+		ByteBuffer[] runs = new ByteBuffer[k];
+		for (int i = 0; i < k; i++) {
+			long[] values = random.longs(rowsPerRun).sorted().toArray();
+			ByteBuffer run = ByteBuffer.allocate(values.length * Long.BYTES);
+			for (long value : values) {
+				run.putLong(value);
+			}
+			run.flip();
+			runs[i] = run;
+		}
+		return runs;
+	}
+
+	private static List<Segment.BufferedSegmentReader<long[]>> readers(ByteBuffer[] runs) {
+		List<Segment.BufferedSegmentReader<long[]>> readers = new ArrayList<>(runs.length);
+		for (ByteBuffer run : runs) {
+			Segment.BufferedSegmentReader<long[]> reader = new Segment.BufferedSegmentReader<>(run.duplicate(), rowReader());
+			reader.loadNewElement();
+			readers.add(reader);
+		}
+		return readers;
+	}
+
+	private static Function<ByteBuffer, long[]> rowReader() {
+		long[] row = new long[1];
+		return bb -> {
+			row[0] = bb.getLong();
+			return row;
+		};
+	}
+
+	private static LongStream values(ByteBuffer run) {
+		ByteBuffer duplicate = run.duplicate();
+		return LongStream.generate(duplicate::getLong).limit(duplicate.remaining() / Long.BYTES);
+	}
+}